@@ -0,0 +1,40 @@
+package com.librato.disco;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks matching the given regular expression (all of them by
+ * default) at 1, 4, 16 and 64 threads, reporting allocation through the GC
+ * profiler. {@link WatchModeBenchmark} measures Zookeeper round trips at its
+ * own thread count, so it is run once instead. For a single run use JMH's own options instead, for example
+ * <code>java -jar target/benchmarks.jar DiscoClientBenchmark -t 8 -prof gc</code>
+ */
+public class BenchmarkRunner {
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        String watchMode = WatchModeBenchmark.class.getName();
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .exclude(watchMode)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+        if (Pattern.compile(include).matcher(watchMode).find()) {
+            new Runner(new OptionsBuilder()
+                    .include(watchMode)
+                    .addProfiler(GCProfiler.class)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-memory {@link IStateCache} so benchmarks do not need Zookeeper
+ */
+class BenchmarkStateCache implements IStateCache {
+    private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<ChildData> currentData = Collections.emptyList();
+
+    @Override
+    public List<ChildData> getCurrentData() {
+        // PathChildrenCache hands out a copy as well
+        return new ArrayList<>(currentData);
+    }
+
+    @Override
+    public void addListener(IStateCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    void set(List<ChildData> children) {
+        currentData = new ArrayList<>(children);
+        for (IStateCacheListener listener : listeners) {
+            listener.childrenChanged();
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+    }
+
+    @Override
+    public void stop() throws Exception {
+    }
+}
@@ -0,0 +1,72 @@
+package com.librato.disco;
+
+import com.google.common.base.Optional;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read path of a started {@link DiscoClient} backed by an in-memory state cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoClientBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int nodes;
+
+    @Param({"roundRobin", "threadLocalRoundRobin", "random", "backoff", "leastOutstanding"})
+    String strategy;
+
+    private DiscoClient<Fixtures.Payload> client;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkStateCache stateCache = new BenchmarkStateCache();
+        client = new DiscoClient<>(null, Fixtures.SERVICE, Fixtures.strategy(strategy), Fixtures.decoder(), null, stateCache);
+        client.start();
+        stateCache.set(Fixtures.children(nodes));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.stop();
+    }
+
+    @Benchmark
+    public Optional<Node<Fixtures.Payload>> getServiceNode() {
+        return client.getServiceNode();
+    }
+
+    @Benchmark
+    public List<Node<Fixtures.Payload>> getAllNodes() {
+        return client.getAllNodes();
+    }
+
+    @Benchmark
+    public Node<Fixtures.Payload> acquireAndClose() {
+        try (NodeLease<Fixtures.Payload> lease = client.acquire().get()) {
+            return lease.getNode();
+        }
+    }
+
+    @Benchmark
+    public int numServiceHosts() {
+        return client.numServiceHosts();
+    }
+}
@@ -0,0 +1,113 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds services of a given size for the benchmarks
+ */
+final class Fixtures {
+    static final String SERVICE = "bench";
+    static final String NODES_PATH = "/services/" + SERVICE + "/nodes/";
+    static final String[] ZONES = {"us-east-1a", "us-east-1b", "us-east-1c"};
+
+    private Fixtures() {
+    }
+
+    /**
+     * Every tenth node was created a second ago, the rest an hour ago
+     */
+    static List<ChildData> children(int count) {
+        List<ChildData> children = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Stat stat = new Stat();
+            stat.setCtime(i % 10 == 0 ? now - TimeUnit.SECONDS.toMillis(1) : now - TimeUnit.HOURS.toMillis(1));
+            stat.setMzxid(i);
+            String payload = ZONES[i % ZONES.length] + "," + (1 + i % 4);
+            children.add(new ChildData(NODES_PATH + "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff) + ":8080",
+                    stat, payload.getBytes(StandardCharsets.UTF_8)));
+        }
+        return children;
+    }
+
+    static List<Node<Payload>> nodes(List<ChildData> children) {
+        List<Node<Payload>> nodes = new ArrayList<>(children.size());
+        Decoder<Payload> decoder = decoder();
+        for (ChildData child : children) {
+            String path = child.getPath().substring(NODES_PATH.length());
+            int l = path.lastIndexOf(':');
+            nodes.add(new Node<>(path.substring(0, l), Integer.parseInt(path.substring(l + 1)), decoder.decode(child.getData())));
+        }
+        return nodes;
+    }
+
+    static Decoder<Payload> decoder() {
+        return new Decoder<Payload>() {
+            @Override
+            public Payload decode(byte[] bytes) {
+                String[] parts = new String(bytes, StandardCharsets.UTF_8).split(",");
+                return new Payload(parts[0], Integer.parseInt(parts[1]));
+            }
+
+            @Override
+            public void handleException(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+    }
+
+    static SelectorStrategy strategy(String name) {
+        switch (name) {
+            case "roundRobin":
+                return new RoundRobinSelectorStrategy();
+            case "threadLocalRoundRobin":
+                return new ThreadLocalRoundRobinSelectorStrategy();
+            case "random":
+                return new RandomSelectorStrategy();
+            case "backoff":
+                return new BackoffSelectorStrategy(TimeUnit.MINUTES.toMillis(1), 10);
+            case "slowStart":
+                return new SlowStartSelectorStrategy(1, TimeUnit.MINUTES);
+            case "leastOutstanding":
+                return new LeastOutstandingSelectorStrategy();
+            case "peakEwma":
+                return new PeakEwmaSelectorStrategy();
+            case "consistentHash":
+                return new ConsistentHashSelectorStrategy();
+            case "zoneAware":
+                return new ZoneAwareSelectorStrategy(ZONES[0]);
+            case "weightedRandom":
+                return new WeightedRandomSelectorStrategy();
+            case "smoothWeightedRoundRobin":
+                return new SmoothWeightedRoundRobinSelectorStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + name);
+        }
+    }
+
+    static final class Payload implements Zoned, Weighted {
+        private final String zone;
+        private final int weight;
+
+        Payload(String zone, int weight) {
+            this.zone = zone;
+            this.weight = weight;
+        }
+
+        @Override
+        public String getZone() {
+            return zone;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+}
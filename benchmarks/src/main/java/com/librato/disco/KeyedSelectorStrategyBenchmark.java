@@ -0,0 +1,68 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConsistentHashSelectorStrategy} lookups by key, and rebuilding its
+ * ring when a single node joins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyedSelectorStrategyBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int nodes;
+
+    @Param({"0", "1.25"})
+    double loadFactor;
+
+    private ConsistentHashSelectorStrategy selector;
+    private List<ChildData> children;
+    private List<ChildData> withoutLast;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        selector = new ConsistentHashSelectorStrategy(160, loadFactor);
+        List<ChildData> all = Fixtures.children(nodes);
+        children = Collections.unmodifiableList(all);
+        withoutLast = Collections.unmodifiableList(all.subList(0, nodes - 1));
+        selector.update(children);
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key-" + i;
+        }
+    }
+
+    @Benchmark
+    public ChildData chooseByKey() {
+        return selector.choose(children, keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public void rebuildAfterJoin() {
+        synchronized (this) {
+            selector.update(withoutLast);
+            selector.update(children);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Level2StateCache#getCurrentData()} with the l2 cache disabled and
+ * enabled, plus the cost of a refresh, which runs on membership changes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Level2StateCacheBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int nodes;
+
+    @Param({"disabled", "percentageThreshold"})
+    String l2;
+
+    private Level2StateCache cache;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkStateCache delegate = new BenchmarkStateCache();
+        ILevel2CacheStrategy strategy = l2.equals("disabled")
+                ? null
+                : new PercentageThresholdLevel2CacheStrategy(0.5, 5, TimeUnit.MINUTES);
+        cache = new Level2StateCache(Fixtures.SERVICE, delegate, strategy);
+        cache.start();
+        delegate.set(Fixtures.children(nodes));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cache.stop();
+    }
+
+    @Benchmark
+    public List<ChildData> getCurrentData() {
+        return cache.getCurrentData();
+    }
+
+    @Benchmark
+    public void refresh() {
+        cache.refresh();
+    }
+}
@@ -0,0 +1,53 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SelectorStrategy#choose(List)} for every strategy, after the
+ * strategy was updated with the membership as {@link DiscoClient} does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorStrategyBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int nodes;
+
+    @Param({"roundRobin", "threadLocalRoundRobin", "random", "backoff", "slowStart", "leastOutstanding", "peakEwma",
+            "consistentHash", "zoneAware", "weightedRandom", "smoothWeightedRoundRobin"})
+    String strategy;
+
+    private SelectorStrategy selector;
+    private List<ChildData> children;
+
+    @Setup
+    public void setup() {
+        selector = Fixtures.strategy(strategy);
+        List<ChildData> all = Fixtures.children(nodes);
+        children = Collections.unmodifiableList(all);
+        selector.update(children, Fixtures.nodes(all));
+    }
+
+    @Benchmark
+    public ChildData choose() {
+        return selector.choose(children);
+    }
+}
@@ -0,0 +1,115 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starting and stopping clients for every service of a local Zookeeper,
+ * watching each service separately versus through one {@link ServicesTreeCache}.
+ * The number of watches each mode holds is printed after the first run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Threads(1)
+@Fork(1)
+public class WatchModeBenchmark {
+    private static final int NODES_PER_SERVICE = 3;
+
+    @Param({"10", "100", "300"})
+    int services;
+
+    @Param({"perService", "rootWatcher"})
+    String mode;
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private boolean watchesPrinted;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        framework.start();
+        framework.blockUntilConnected();
+        for (int i = 0; i < services; i++) {
+            for (int j = 0; j < NODES_PER_SERVICE; j++) {
+                framework.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+                        .forPath("/services/service" + i + "/nodes/10.0.0." + j + ":8080", new byte[0]);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        framework.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int startAndStopClients() throws Exception {
+        DiscoClientFactory<Object> factory = new DiscoClientFactory<>(framework, RoundRobinSelectorStrategy::new,
+                null, null, DiscoMetrics.NOOP, mode.equals("rootWatcher") ? new ServicesTreeCache(framework) : null);
+        List<DiscoClient<Object>> clients = new ArrayList<>(services);
+        for (int i = 0; i < services; i++) {
+            clients.add(factory.buildClient("service" + i));
+        }
+        int nodes = 0;
+        for (DiscoClient<Object> client : clients) {
+            nodes += client.numServiceHosts();
+        }
+        if (!watchesPrinted) {
+            watchesPrinted = true;
+            System.out.println("\n" + mode + " with " + services + " services: " + watchSummary());
+        }
+        for (DiscoClient<Object> client : clients) {
+            client.stop();
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the server's watch summary, from the wchs four letter word
+     */
+    private String watchSummary() throws Exception {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("wchs".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            StringBuilder summary = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                summary.append(line.trim()).append(' ');
+            }
+            return summary.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.librato.disco;
+
+import com.google.common.net.InetAddresses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the hostnames of a client's nodes off the request path, so that
+ * {@link Node#getAddress()} never waits on DNS. Hostnames are looked up when
+ * their nodes are discovered, and all of them again every {@link #TTL_MILLIS}
+ * so that changed records are picked up. A failed lookup keeps the last
+ * address that resolved.
+ */
+final class AddressResolver {
+    private static final Logger log = LoggerFactory.getLogger(AddressResolver.class);
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private final String serviceName;
+    private final StarterStopper starterStopper = new StarterStopper();
+    private ScheduledFuture<?> refreshFuture;
+
+    AddressResolver(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Re-resolves the nodes supplied every {@link #TTL_MILLIS}
+     */
+    void start(final Supplier<List<? extends Node<?>>> nodes) {
+        starterStopper.start();
+        refreshFuture = SharedExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                resolveAsync(nodes.get());
+            }
+        }, TTL_MILLIS, TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        starterStopper.stop();
+        if (refreshFuture != null) {
+            refreshFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Resolves the hostnames of the given nodes in the background
+     */
+    void resolveAsync(Collection<? extends Node<?>> nodes) {
+        final List<Node<?>> hostnames = new ArrayList<>();
+        for (Node<?> node : nodes) {
+            if (isHostname(node)) {
+                hostnames.add(node);
+            }
+        }
+        if (hostnames.isEmpty()) {
+            return;
+        }
+        SharedExecutors.resolveExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                resolve(hostnames);
+            }
+        });
+    }
+
+    private static boolean isHostname(Node<?> node) {
+        // ip literals are resolved when the node is built
+        return !InetAddresses.isInetAddress(node.host);
+    }
+
+    private void resolve(List<Node<?>> nodes) {
+        // nodes of the same host are resolved with a single lookup
+        Map<String, InetAddress> resolved = new HashMap<>();
+        for (Node<?> node : nodes) {
+            InetAddress address = resolved.get(node.host);
+            if (address == null && !resolved.containsKey(node.host)) {
+                try {
+                    address = InetAddress.getByName(node.host);
+                } catch (UnknownHostException e) {
+                    log.warn("Could not resolve {} of `{}`", node.host, serviceName);
+                }
+                resolved.put(node.host, address);
+            }
+            if (address != null) {
+                node.setAddress(new InetSocketAddress(address, node.port));
+            }
+        }
+    }
+}
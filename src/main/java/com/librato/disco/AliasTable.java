@@ -0,0 +1,67 @@
+package com.librato.disco;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Vose's alias method: after an O(n) build, picks an index with probability
+ * proportional to its weight in O(1) without allocating.
+ */
+final class AliasTable {
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * @param weights non-negative weights; if they are all zero every index is equally likely
+     */
+    AliasTable(double[] weights) {
+        final int size = weights.length;
+        probability = new double[size];
+        alias = new int[size];
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        Deque<Integer> small = new ArrayDeque<>();
+        Deque<Integer> large = new ArrayDeque<>();
+        double[] scaled = new double[size];
+        for (int i = 0; i < size; i++) {
+            scaled[i] = total > 0 ? weights[i] * size / total : 1;
+            if (scaled[i] < 1) {
+                small.add(i);
+            } else {
+                large.add(i);
+            }
+        }
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int less = small.pop();
+            int more = large.pop();
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) {
+                small.add(more);
+            } else {
+                large.add(more);
+            }
+        }
+        // whatever is left is 1 up to rounding error
+        while (!large.isEmpty()) {
+            probability[large.pop()] = 1;
+        }
+        while (!small.isEmpty()) {
+            probability[small.pop()] = 1;
+        }
+    }
+
+    int size() {
+        return probability.length;
+    }
+
+    int next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int column = random.nextInt(probability.length);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
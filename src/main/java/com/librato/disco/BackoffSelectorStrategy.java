@@ -4,19 +4,19 @@ import org.apache.curator.framework.recipes.cache.ChildData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
-import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This selector strategy attempts to backoff a node given its creation timestamp for a specified period, allowing
  * a percentage through to the node (low effort on enforcing percentage)
+ *
+ * @deprecated use {@link SlowStartSelectorStrategy}, which ramps new nodes up
+ * gradually and picks in constant time however many nodes are young
  */
+@Deprecated
 public class BackoffSelectorStrategy implements SelectorStrategy {
     private static final Logger log = LoggerFactory.getLogger(BackoffSelectorStrategy.class);
-    private final Random rand = new Random();
     private final SelectorStrategy base;
     private final int percentage;
     private final long period; // millis
@@ -34,23 +34,22 @@ public class BackoffSelectorStrategy implements SelectorStrategy {
     private boolean allow(ChildData cd) {
         // if this ChildData is old enough or falls into the requested percentile, allow to pass
         final long elapsed = System.currentTimeMillis() - cd.getStat().getCtime();
-        return elapsed > period || rand.nextInt(100) <= percentage;
+        return elapsed > period || ThreadLocalRandom.current().nextInt(100) <= percentage;
     }
 
     private ChildData fallbackChoose(List<ChildData> children, ChildData current) {
-        // Create a randomly-ordered list of the remaining choices
-        List<ChildData> otherChildren = children.stream()
-                .filter(c -> c != current)
-                .collect(Collectors.toList());
-        Collections.shuffle(otherChildren);
-
-        // From the remaining ChildData return the first allowed node, if found,
-        // otherwise return the originally selected node
-        Optional<ChildData> chosen = otherChildren.stream()
-                .filter(this::allow)
-                .findFirst();
-
-        return chosen.orElse(current);
+        // Walk the remaining choices from a random offset, without copying them,
+        // and return the first allowed node, if found, otherwise return the
+        // originally selected node
+        final int size = children.size();
+        final int offset = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            ChildData child = children.get((offset + i) % size);
+            if (child != current && allow(child)) {
+                return child;
+            }
+        }
+        return current;
     }
 
     @Override
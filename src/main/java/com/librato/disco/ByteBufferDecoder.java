@@ -0,0 +1,24 @@
+package com.librato.disco;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Decoder} that reads payloads from a buffer. {@link DiscoClient}
+ * hands it a read-only buffer over the bytes it received from Zookeeper, so
+ * decoders that can parse from a buffer or stream avoid copying the payload.
+ * @param <T> type of object excepted from decoding bytes
+ */
+public interface ByteBufferDecoder<T> extends Decoder<T> {
+    /**
+     * Decode a buffer into an object of type T
+     * @param buffer a read-only buffer over the payload stored in Zookeeper,
+     *               positioned at its first byte
+     * @return returns the object as decoded from the buffer
+     */
+    T decode(ByteBuffer buffer);
+
+    @Override
+    default T decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,268 @@
+package com.librato.disco;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps keys to nodes with a consistent hash ring built over each node's
+ * <code>host:port</code> identity, so a key keeps going to the same node and
+ * a membership change only moves the keys of the nodes that came or went.
+ * The ring is updated incrementally: only joining nodes are hashed and the
+ * surviving points are merged with theirs.
+ * <p>
+ * With a load factor the ring also bounds load: a node may have at most
+ * <code>loadFactor</code> times the average number of outstanding requests,
+ * and keys that land on a node at capacity move on to the next node on the
+ * ring. Outstanding requests are counted through {@link DiscoClient#acquire(String)}.
+ * <p>
+ * Calls without a key pick a random node. Keeps per-membership state, so use
+ * one instance per {@link DiscoClient}.
+ */
+public class ConsistentHashSelectorStrategy implements KeyedSelectorStrategy, FeedbackSelectorStrategy {
+    private static final HashFunction pointHash = Hashing.murmur3_128();
+    private static final int DEFAULT_REPLICAS = 160;
+    private final int replicas;
+    private final double loadFactor;
+    // path -> outstanding requests
+    private final ConcurrentMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private final AtomicInteger totalOutstanding = new AtomicInteger();
+    private volatile Ring ring = new Ring(Collections.<ChildData>emptyList(), new String[0], new long[0], new int[0], new AtomicInteger[0]);
+    // a client updates the selector before publishing the membership, so requests
+    // still choosing from the previous membership keep hashing on its ring
+    private volatile Ring previousRing = ring;
+
+    /**
+     * A ring with 160 points per node and no load bound
+     */
+    public ConsistentHashSelectorStrategy() {
+        this(DEFAULT_REPLICAS, 0);
+    }
+
+    /**
+     * @param replicas   points per node on the ring; more points spread keys more evenly
+     * @param loadFactor maximum outstanding requests of a node relative to the average,
+     *                   for example 1.25, or 0 to not bound load
+     */
+    public ConsistentHashSelectorStrategy(int replicas, double loadFactor) {
+        Preconditions.checkArgument(replicas > 0, "replicas must be positive");
+        Preconditions.checkArgument(loadFactor == 0 || loadFactor >= 1, "loadFactor must be 0 or at least 1");
+        this.replicas = replicas;
+        this.loadFactor = loadFactor;
+    }
+
+    @Override
+    public synchronized void update(List<ChildData> children) {
+        final int size = children.size();
+        String[] identities = new String[size];
+        Map<String, Integer> indexByIdentity = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            identities[i] = identity(children.get(i));
+            indexByIdentity.put(identities[i], i);
+        }
+        Ring previous = ring;
+
+        // keep the points of surviving nodes, which are already in order
+        long[] kept = new long[previous.points.length];
+        int[] keptOwners = new int[previous.points.length];
+        int keptCount = 0;
+        for (int i = 0; i < previous.points.length; i++) {
+            Integer owner = indexByIdentity.get(previous.identities[previous.owners[i]]);
+            if (owner != null) {
+                kept[keptCount] = previous.points[i];
+                keptOwners[keptCount++] = owner;
+            }
+        }
+
+        // hash only the nodes that joined
+        Set<String> previousIdentities = new HashSet<>(Arrays.asList(previous.identities));
+        int joined = 0;
+        for (String identity : identities) {
+            if (!previousIdentities.contains(identity)) {
+                joined++;
+            }
+        }
+        long[] unsorted = new long[joined * replicas];
+        int[] unsortedOwners = new int[unsorted.length];
+        int addedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (!previousIdentities.contains(identities[i])) {
+                for (int r = 0; r < replicas; r++) {
+                    unsorted[addedCount] = pointHash.hashString(identities[i] + "-" + r, StandardCharsets.UTF_8).asLong();
+                    unsortedOwners[addedCount++] = i;
+                }
+            }
+        }
+        Integer[] order = new Integer[addedCount];
+        for (int i = 0; i < addedCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        long[] added = new long[addedCount];
+        int[] addedOwners = new int[addedCount];
+        for (int i = 0; i < addedCount; i++) {
+            added[i] = unsorted[order[i]];
+            addedOwners[i] = unsortedOwners[order[i]];
+        }
+
+        long[] points = new long[keptCount + added.length];
+        int[] owners = new int[points.length];
+        merge(kept, keptOwners, keptCount, added, addedOwners, added.length, points, owners);
+
+        AtomicInteger[] counters = new AtomicInteger[size];
+        Set<String> paths = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            String path = children.get(i).getPath();
+            paths.add(path);
+            AtomicInteger counter = outstanding.get(path);
+            if (counter == null) {
+                counter = new AtomicInteger();
+                outstanding.put(path, counter);
+            }
+            counters[i] = counter;
+        }
+        for (Map.Entry<String, AtomicInteger> entry : outstanding.entrySet()) {
+            if (!paths.contains(entry.getKey())) {
+                totalOutstanding.addAndGet(-entry.getValue().get());
+                outstanding.remove(entry.getKey());
+            }
+        }
+        previousRing = previous;
+        ring = new Ring(children, identities, points, owners, counters);
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        return children.get(ThreadLocalRandom.current().nextInt(children.size()));
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children, String key) {
+        Ring current = ring;
+        boolean bounded = loadFactor > 0;
+        if (current.children != children) {
+            current = previousRing;
+            if (current.children != children) {
+                // a membership we were never updated with, so hash on a throwaway ring
+                ConsistentHashSelectorStrategy adhoc = new ConsistentHashSelectorStrategy(replicas, 0);
+                adhoc.update(children);
+                current = adhoc.ring;
+                bounded = false;
+            }
+        }
+        final long[] points = current.points;
+        // keys are hashed like the points, so they spread over the whole ring
+        int idx = Arrays.binarySearch(points, pointHash.hashString(key, StandardCharsets.UTF_8).asLong());
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        if (idx == points.length) {
+            idx = 0;
+        }
+        if (bounded) {
+            // walk the ring until a node below capacity; there always is one as loadFactor >= 1
+            final int capacity = (int) Math.ceil(loadFactor * (totalOutstanding.get() + 1) / children.size());
+            for (int i = 0; i < points.length; i++) {
+                int owner = current.owners[(idx + i) % points.length];
+                if (current.counters[owner].get() < capacity) {
+                    return children.get(owner);
+                }
+            }
+        }
+        return children.get(current.owners[idx]);
+    }
+
+    @Override
+    public void requestStarted(ChildData child) {
+        AtomicInteger counter = outstanding.get(child.getPath());
+        if (counter != null) {
+            counter.incrementAndGet();
+            totalOutstanding.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void requestFinished(ChildData child) {
+        AtomicInteger counter = outstanding.get(child.getPath());
+        if (counter != null) {
+            // the node may have left and rejoined while the request was outstanding
+            int current;
+            do {
+                current = counter.get();
+            } while (current > 0 && !counter.compareAndSet(current, current - 1));
+            if (current > 0) {
+                totalOutstanding.decrementAndGet();
+            }
+        }
+    }
+
+    long[] points() {
+        return ring.points;
+    }
+
+    int[] owners() {
+        return ring.owners;
+    }
+
+    private static String identity(ChildData child) {
+        String path = child.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Merges two runs of points sorted in ascending order, keeping their owners alongside
+     */
+    private static void merge(long[] a, int[] aOwners, int aLength,
+                              long[] b, int[] bOwners, int bLength,
+                              long[] into, int[] intoOwners) {
+        int i = 0, j = 0, k = 0;
+        while (i < aLength && j < bLength) {
+            if (a[i] <= b[j]) {
+                intoOwners[k] = aOwners[i];
+                into[k++] = a[i++];
+            } else {
+                intoOwners[k] = bOwners[j];
+                into[k++] = b[j++];
+            }
+        }
+        while (i < aLength) {
+            intoOwners[k] = aOwners[i];
+            into[k++] = a[i++];
+        }
+        while (j < bLength) {
+            intoOwners[k] = bOwners[j];
+            into[k++] = b[j++];
+        }
+    }
+
+    private static final class Ring {
+        final List<ChildData> children;
+        final String[] identities;
+        final long[] points;
+        // index into children of the node owning each point
+        final int[] owners;
+        final AtomicInteger[] counters;
+
+        Ring(List<ChildData> children, String[] identities, long[] points, int[] owners, AtomicInteger[] counters) {
+            this.children = children;
+            this.identities = identities;
+            this.points = points;
+            this.owners = owners;
+            this.counters = counters;
+        }
+    }
+}
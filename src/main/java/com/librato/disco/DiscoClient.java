@@ -1,21 +1,33 @@
 package com.librato.disco;
 
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.google.common.base.Throwables;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Preconditions;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Keeps track of a set of services registered under a specific Zookeeper node
@@ -24,13 +36,28 @@ import java.util.stream.Collectors;
 public class DiscoClient<T> {
     private static final Logger log = LoggerFactory.getLogger(DiscoClient.class);
     private static final String serviceNodesFormat = "/services/%s/nodes";
+    // changes with fewer new payloads are decoded on the thread rebuilding the snapshot
+    private static final int PARALLEL_DECODE_THRESHOLD = 16;
     private final CuratorFramework framework;
+    private final String serviceName;
     private final SelectorStrategy selector;
     private final String serviceNodesPath;
-    private final Cache<ChildData, Node<T>> deserializedNodeCache;
     private final Decoder<T> decoder;
+    // whether payloads are decoded on first access, see LazyDecoder
+    private final boolean lazyDecoding;
     private final StarterStopper starterStopper = new StarterStopper();
     private final IStateCache cache;
+    private final OutlierDetector outlierDetector;
+    private final DiscoMetrics metrics;
+    private final Hedger<T> hedger = new Hedger<>(this);
+    private final AddressResolver addressResolver;
+    private final Set<SnapshotWaiter> waiters = ConcurrentHashMap.newKeySet();
+    private final List<TopologyListener<T>> topologyListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+    // decides whether stop() really stops, set for clients shared by a DiscoClientFactory
+    private volatile BooleanSupplier releaseHook;
+    private volatile NodeSnapshot<T> snapshot = NodeSnapshot.empty();
+    private long snapshotVersion;
 
     public DiscoClient(CuratorFramework framework,
                        String serviceName,
@@ -44,25 +71,150 @@ public class DiscoClient<T> {
                        SelectorStrategy selector,
                        Decoder<T> decoder,
                        ILevel2CacheStrategy cacheStrat) {
+        this(framework, serviceName, selector, decoder, cacheStrat, (OutlierDetector) null);
+    }
+
+    /**
+     * @param outlierDetector ejects failing nodes from selection, null to not eject
+     */
+    public DiscoClient(CuratorFramework framework,
+                       String serviceName,
+                       SelectorStrategy selector,
+                       Decoder<T> decoder,
+                       ILevel2CacheStrategy cacheStrat,
+                       OutlierDetector outlierDetector) {
+        this(framework, serviceName, selector, decoder, cacheStrat, outlierDetector, DiscoMetrics.NOOP);
+    }
+
+    /**
+     * @param outlierDetector ejects failing nodes from selection, null to not eject
+     * @param metrics         receives selection, snapshot, decoding and l2 cache measurements
+     */
+    public DiscoClient(CuratorFramework framework,
+                       String serviceName,
+                       SelectorStrategy selector,
+                       Decoder<T> decoder,
+                       ILevel2CacheStrategy cacheStrat,
+                       OutlierDetector outlierDetector,
+                       DiscoMetrics metrics) {
+        this(framework, serviceName, selector, decoder, cacheStrat, outlierDetector, metrics,
+                new PathChildrenStateCache(framework, serviceName, nodesPath(serviceName)));
+    }
+
+    /**
+     * @param outlierDetector   ejects failing nodes from selection, null to not eject
+     * @param metrics           receives selection, snapshot, decoding and l2 cache measurements
+     * @param snapshotDirectory where to persist the service's nodes, which the next start serves
+     *                          until Zookeeper is read. See {@link SnapshotFileStateCache}
+     */
+    public DiscoClient(CuratorFramework framework,
+                       String serviceName,
+                       SelectorStrategy selector,
+                       Decoder<T> decoder,
+                       ILevel2CacheStrategy cacheStrat,
+                       OutlierDetector outlierDetector,
+                       DiscoMetrics metrics,
+                       File snapshotDirectory) {
+        this(framework, serviceName, selector, decoder, cacheStrat, outlierDetector, metrics,
+                new SnapshotFileStateCache(serviceName,
+                        new PathChildrenStateCache(framework, serviceName, nodesPath(serviceName)), snapshotDirectory));
+    }
+
+    DiscoClient(CuratorFramework framework,
+                String serviceName,
+                SelectorStrategy selector,
+                Decoder<T> decoder,
+                ILevel2CacheStrategy cacheStrat,
+                IStateCache zkStateCache) {
+        this(framework, serviceName, selector, decoder, cacheStrat, null, zkStateCache);
+    }
+
+    DiscoClient(CuratorFramework framework,
+                String serviceName,
+                SelectorStrategy selector,
+                Decoder<T> decoder,
+                ILevel2CacheStrategy cacheStrat,
+                OutlierDetector outlierDetector,
+                IStateCache zkStateCache) {
+        this(framework, serviceName, selector, decoder, cacheStrat, outlierDetector, DiscoMetrics.NOOP, zkStateCache);
+    }
+
+    DiscoClient(CuratorFramework framework,
+                String serviceName,
+                SelectorStrategy selector,
+                Decoder<T> decoder,
+                ILevel2CacheStrategy cacheStrat,
+                OutlierDetector outlierDetector,
+                DiscoMetrics metrics,
+                IStateCache zkStateCache) {
         this.framework = framework;
+        this.serviceName = serviceName;
         this.selector = selector;
-        this.decoder = decoder;
-        serviceNodesPath = String.format(serviceNodesFormat, serviceName);
-        deserializedNodeCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build();
-        PathChildrenStateCache zkStateCache = new PathChildrenStateCache(framework, serviceName, serviceNodesPath);
-        this.cache = new Level2StateCache(serviceName, zkStateCache, cacheStrat);
+        this.addressResolver = new AddressResolver(serviceName);
+        this.lazyDecoding = decoder instanceof LazyDecoder;
+        this.decoder = lazyDecoding ? ((LazyDecoder<T>) decoder).getDelegate() : decoder;
+        this.outlierDetector = outlierDetector;
+        this.metrics = metrics;
+        serviceNodesPath = nodesPath(serviceName);
+        this.cache = new Level2StateCache(serviceName, zkStateCache, cacheStrat, metrics);
+        this.cache.addListener(new IStateCacheListener() {
+            @Override
+            public void childrenChanged() {
+                rebuildSnapshotAsync();
+            }
+        });
+        if (outlierDetector != null) {
+            outlierDetector.setListener(this::rebuildSnapshotAsync);
+        }
     }
 
     public void start() throws Exception {
         starterStopper.start();
-        cache.start();
+        try {
+            cache.start();
+        } catch (Exception e) {
+            // allow starting again, for example once Zookeeper can be reached
+            starterStopper.stop();
+            throw e;
+        }
+        // timers only start once the cache did, so a failed start leaves nothing running
+        if (outlierDetector != null) {
+            outlierDetector.start();
+        }
+        addressResolver.start(() -> snapshot.nodeList);
+        // the initial cache is built without firing child events
+        rebuildSnapshot();
     }
 
+    /**
+     * Stops the client. A client built by a {@link DiscoClientFactory} is
+     * shared by everyone who built a client for the same service, and only
+     * stops once each of them stopped it, so each caller must stop it once.
+     */
     public void stop() throws Exception {
+        BooleanSupplier hook = releaseHook;
+        if (hook != null && !hook.getAsBoolean()) {
+            return;
+        }
         starterStopper.stop();
+        for (SnapshotWaiter waiter : waiters) {
+            if (waiters.remove(waiter)) {
+                waiter.future.completeExceptionally(new IllegalStateException("Client for " + serviceName + " was stopped"));
+            }
+        }
         cache.stop();
+        addressResolver.stop();
+        if (outlierDetector != null) {
+            outlierDetector.stop();
+        }
+    }
+
+    void setReleaseHook(BooleanSupplier releaseHook) {
+        this.releaseHook = releaseHook;
+    }
+
+    static String nodesPath(String serviceName) {
+        return String.format(serviceNodesFormat, serviceName);
     }
 
     public boolean isStarted() {
@@ -70,52 +222,588 @@ public class DiscoClient<T> {
     }
 
     public List<Node<T>> getAllNodes() {
-        return cache.getCurrentData().stream().map(this::toNode).collect(Collectors.toList());
+        return snapshot.nodeList;
+    }
+
+    /**
+     * @return the nodes selection chooses from, which excludes ejected nodes
+     */
+    List<Node<T>> getSelectableNodes() {
+        return snapshot.selectableNodes;
     }
 
     public List<ChildData> getCurrentData() {
-        return cache.getCurrentData();
+        return snapshot.children;
     }
 
     public Optional<Node<T>> getServiceNode() {
-        return nextChildData().transform(this::toNode);
+        final NodeSnapshot<T> current = snapshot;
+        if (current.selectable.isEmpty()) {
+            return Optional.absent();
+        }
+        return Optional.of(selected(nodeFor(current, selector.choose(current.selectable))));
+    }
+
+    /**
+     * Selects the node a key maps to. Requires a {@link KeyedSelectorStrategy},
+     * such as {@link ConsistentHashSelectorStrategy}.
+     */
+    public Optional<Node<T>> getServiceNode(String key) {
+        final NodeSnapshot<T> current = snapshot;
+        if (current.selectable.isEmpty()) {
+            return Optional.absent();
+        }
+        return Optional.of(selected(nodeFor(current, keyedSelector().choose(current.selectable, key))));
+    }
+
+    /**
+     * Adds a listener for membership changes. The listener is first called
+     * with the current nodes as added, if there are any, and then with the
+     * nodes added, removed and updated by every change.
+     */
+    public void addListener(TopologyListener<T> listener) {
+        synchronized (this) {
+            topologyListeners.add(listener);
+            NodeSnapshot<T> current = snapshot;
+            if (!current.isEmpty()) {
+                Set<Node<T>> added = identitySet();
+                added.addAll(current.nodeList);
+                notifyListener(listener, new TopologyChange<>(current.version,
+                        added, Collections.<Node<T>>emptySet(), Collections.<Node<T>>emptySet()));
+            }
+        }
+    }
+
+    public void removeListener(TopologyListener<T> listener) {
+        topologyListeners.remove(listener);
+    }
+
+    /**
+     * Creates a resource, such as a connection pool, for every node as it
+     * joins, and closes it as the node leaves. Stop the returned instance
+     * before stopping the client.
+     * @return the started resources, which select nodes along with their resource
+     */
+    public <R> NodeResources<T, R> manageResources(NodeResourceManager<T, R> manager) {
+        NodeResources<T, R> resources = new NodeResources<>(this, manager);
+        resources.start();
+        return resources;
+    }
+
+    /**
+     * @return a version that increases with every change of the nodes handed out by this client
+     */
+    public long getTopologyVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Selects a node as soon as one is available, instead of polling
+     * {@link #getServiceNode()}. Completes right away if a node is available.
+     *
+     * @param timeout how long to wait before failing with a {@link TimeoutException}, null to wait indefinitely
+     */
+    public CompletableFuture<Node<T>> awaitServiceNode(Duration timeout) {
+        return await(current -> !current.selectable.isEmpty(), timeout)
+                .thenApply(current -> selected(nodeFor(current, selector.choose(current.selectable))));
+    }
+
+    /**
+     * Completes once the service has at least n nodes, including nodes that
+     * are ejected by outlier detection.
+     */
+    public CompletableFuture<Void> awaitMinimumNodes(int n) {
+        return awaitMinimumNodes(n, null);
+    }
+
+    /**
+     * Completes once the service has at least n nodes, see {@link #awaitMinimumNodes(int)}.
+     *
+     * @param timeout how long to wait before failing with a {@link TimeoutException}, null to wait indefinitely
+     */
+    public CompletableFuture<Void> awaitMinimumNodes(final int n, Duration timeout) {
+        return await(current -> current.size() >= n, timeout).thenApply(current -> null);
+    }
+
+    private CompletableFuture<NodeSnapshot<T>> await(Predicate<NodeSnapshot<T>> condition, Duration timeout) {
+        final SnapshotWaiter waiter = new SnapshotWaiter(condition);
+        waiters.add(waiter);
+        // the snapshot may have changed before the waiter was added
+        completeWaiters();
+        if (timeout != null && !waiter.future.isDone()) {
+            final ScheduledFuture<?> expiry = SharedExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (waiters.remove(waiter)) {
+                        waiter.future.completeExceptionally(new TimeoutException(
+                                "No nodes of " + serviceName + " available after " + timeout));
+                    }
+                }
+            }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            waiter.future.whenComplete((current, error) -> expiry.cancel(false));
+        }
+        return waiter.future;
+    }
+
+    private void completeWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        final NodeSnapshot<T> current = snapshot;
+        for (SnapshotWaiter waiter : waiters) {
+            if (waiter.condition.test(current) && waiters.remove(waiter)) {
+                waiter.future.complete(current);
+            }
+        }
+    }
+
+    /**
+     * Selects up to n distinct nodes in one call, for example to fan a query
+     * out or to replicate a write. The selector strategy picks nodes for as
+     * long as it keeps returning new ones, the rest are filled in from a
+     * random position in the membership, so this works with any
+     * {@link SelectorStrategy} and never retries without bound.
+     *
+     * @return n distinct nodes, or every selectable node if there are fewer
+     */
+    public List<Node<T>> getServiceNodes(int n) {
+        return getServiceNodes(n, false);
+    }
+
+    /**
+     * Selects up to n distinct nodes, see {@link #getServiceNodes(int)}.
+     *
+     * @param spreadAcrossZones whether to pick a node from every zone before
+     *                          picking a second node from the same zone, see {@link Zoned}
+     */
+    public List<Node<T>> getServiceNodes(int n, boolean spreadAcrossZones) {
+        Preconditions.checkArgument(n >= 0, "Cannot select a negative number of nodes");
+        final NodeSnapshot<T> current = snapshot;
+        final List<ChildData> children = current.selectable;
+        int wanted = Math.min(n, children.size());
+        List<Node<T>> result = new ArrayList<>(wanted);
+        if (wanted == 0) {
+            return result;
+        }
+        Set<ChildData> taken = Collections.newSetFromMap(new IdentityHashMap<ChildData, Boolean>(wanted * 2));
+        Set<String> zones = spreadAcrossZones && current.selectableZones() > 1 ? new HashSet<String>() : null;
+        for (int attempts = 0; result.size() < wanted && attempts < 2 * wanted; attempts++) {
+            offer(current, selector.choose(children), taken, zones, true, result);
+        }
+        // the selector keeps returning taken nodes, walk the membership instead,
+        // first keeping to zones without a pick and then ignoring zones
+        int offset = ThreadLocalRandom.current().nextInt(children.size());
+        for (int pass = zones == null ? 1 : 0; pass < 2 && result.size() < wanted; pass++) {
+            for (int i = 0; i < children.size() && result.size() < wanted; i++) {
+                offer(current, children.get((offset + i) % children.size()), taken, zones, pass == 0, result);
+            }
+        }
+        return result;
+    }
+
+    private void offer(NodeSnapshot<T> current, ChildData child, Set<ChildData> taken, Set<String> zones,
+                       boolean newZonesOnly, List<Node<T>> result) {
+        if (taken.contains(child)) {
+            return;
+        }
+        Node<T> node = nodeFor(current, child);
+        if (zones != null) {
+            String zone = Zoned.zoneOf(node);
+            if (newZonesOnly && zones.contains(zone)) {
+                return;
+            }
+            zones.add(zone);
+            if (zones.size() == current.selectableZones()) {
+                // every zone has a pick, start the next round
+                zones.clear();
+            }
+        }
+        taken.add(child);
+        result.add(selected(node));
+    }
+
+    /**
+     * Selects a node for a single request. The returned lease must be closed
+     * when the request finishes so that load aware selector strategies, such
+     * as {@link LeastOutstandingSelectorStrategy}, and outlier detection can
+     * account for it.
+     */
+    public Optional<NodeLease<T>> acquire() {
+        final NodeSnapshot<T> current = snapshot;
+        if (current.selectable.isEmpty()) {
+            return Optional.absent();
+        }
+        ChildData chosen = selector.choose(current.selectable);
+        return Optional.of(new NodeLease<>(this, chosen, selected(nodeFor(current, chosen))));
+    }
+
+    /**
+     * Selects the node a key maps to for a single request, see {@link #acquire()}.
+     * Requires a {@link KeyedSelectorStrategy}, such as {@link ConsistentHashSelectorStrategy}.
+     */
+    public Optional<NodeLease<T>> acquire(String key) {
+        final NodeSnapshot<T> current = snapshot;
+        if (current.selectable.isEmpty()) {
+            return Optional.absent();
+        }
+        ChildData chosen = keyedSelector().choose(current.selectable, key);
+        return Optional.of(new NodeLease<>(this, chosen, selected(nodeFor(current, chosen))));
+    }
+
+    /**
+     * Sends a request to a node, and a second request to a different node if
+     * the first did not reply within the 95th percentile of recent latencies,
+     * using this client's default {@link Hedger}. Create a {@link Hedger} to
+     * use a different delay or budget.
+     *
+     * @param request sends a request to the given node without blocking
+     * @return the reply of the first request to succeed
+     */
+    public <R> CompletableFuture<R> hedge(Function<Node<T>, CompletableFuture<R>> request) {
+        return hedger.execute(request);
+    }
+
+    /**
+     * Acquires a node other than the given one, for a hedged request. Absent
+     * if no other node is selectable.
+     */
+    Optional<NodeLease<T>> acquireOther(Node<T> excluded) {
+        final NodeSnapshot<T> current = snapshot;
+        final List<ChildData> children = current.selectable;
+        if (children.isEmpty()) {
+            return Optional.absent();
+        }
+        // the snapshot may have changed since, so compare by address
+        ChildData chosen = selector.choose(children);
+        if (isSameAddress(nodeFor(current, chosen), excluded)) {
+            chosen = null;
+            int offset = ThreadLocalRandom.current().nextInt(children.size());
+            for (int i = 0; i < children.size() && chosen == null; i++) {
+                ChildData child = children.get((offset + i) % children.size());
+                if (!isSameAddress(nodeFor(current, child), excluded)) {
+                    chosen = child;
+                }
+            }
+            if (chosen == null) {
+                return Optional.absent();
+            }
+        }
+        return Optional.of(new NodeLease<>(this, chosen, selected(nodeFor(current, chosen))));
     }
 
-    Node<T> toNode(final ChildData data) {
+    private static boolean isSameAddress(Node<?> a, Node<?> b) {
+        return a.port == b.port && a.host.equals(b.host);
+    }
+
+    private Node<T> nodeFor(NodeSnapshot<T> current, ChildData chosen) {
+        Node<T> node = current.nodeFor(chosen);
+        // nodes are only built when the snapshot is, never on the request path
+        Preconditions.checkState(node != null, "%s chose a child that is not part of the snapshot", selector);
+        return node;
+    }
+
+    private Node<T> selected(Node<T> node) {
+        metrics.nodeSelected(serviceName, node);
+        return node;
+    }
+
+    /**
+     * Reports the latency of a request made against a node returned by this
+     * client to the selector strategy, if it is a {@link FeedbackSelectorStrategy}.
+     * Nodes that are no longer part of the membership are ignored.
+     */
+    public void recordLatency(Node<T> node, long nanos) {
+        ChildData child = snapshot.childFor(node);
+        if (child != null) {
+            recordLatency(child, nanos);
+        }
+    }
+
+    /**
+     * Reports a successful request made against a node returned by this
+     * client to outlier detection. Nodes that are no longer part of the
+     * membership are ignored.
+     */
+    public void reportSuccess(Node<T> node) {
+        ChildData child = snapshot.childFor(node);
+        if (child != null) {
+            reportSuccess(child);
+        }
+    }
+
+    /**
+     * Reports a failed request made against a node returned by this client to
+     * outlier detection and to the selector strategy, if it is a
+     * {@link FeedbackSelectorStrategy}. Nodes that are no longer part of the
+     * membership are ignored.
+     */
+    public void reportFailure(Node<T> node) {
+        ChildData child = snapshot.childFor(node);
+        if (child != null) {
+            reportFailure(child);
+        }
+    }
+
+    void requestStarted(ChildData child) {
+        FeedbackSelectorStrategy feedback = feedback();
+        if (feedback != null) {
+            feedback.requestStarted(child);
+        }
+    }
+
+    void requestFinished(ChildData child) {
+        FeedbackSelectorStrategy feedback = feedback();
+        if (feedback != null) {
+            feedback.requestFinished(child);
+        }
+    }
+
+    void recordLatency(ChildData child, long nanos) {
+        FeedbackSelectorStrategy feedback = feedback();
+        if (feedback != null) {
+            feedback.recordLatency(child, nanos);
+        }
+    }
+
+    void reportSuccess(ChildData child) {
+        if (outlierDetector != null) {
+            outlierDetector.success(child);
+        }
+    }
+
+    void reportFailure(ChildData child) {
+        FeedbackSelectorStrategy feedback = feedback();
+        if (feedback != null) {
+            feedback.recordFailure(child);
+        }
+        if (outlierDetector != null) {
+            outlierDetector.failure(child);
+        }
+    }
+
+    private KeyedSelectorStrategy keyedSelector() {
+        Preconditions.checkState(selector instanceof KeyedSelectorStrategy,
+                "Selecting by key requires a KeyedSelectorStrategy");
+        return (KeyedSelectorStrategy) selector;
+    }
+
+    private FeedbackSelectorStrategy feedback() {
+        return selector instanceof FeedbackSelectorStrategy ? (FeedbackSelectorStrategy) selector : null;
+    }
+
+    /**
+     * Rebuilds the node snapshot on the service's event thread. Ejections are
+     * reported on request threads, which must not wait on a rebuild, and a
+     * burst of them, or of node updates as every server reports its load,
+     * only needs a single rebuild.
+     */
+    private void rebuildSnapshotAsync() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            SharedExecutors.eventExecutor(serviceName).execute(() -> {
+                rebuildPending.set(false);
+                if (starterStopper.isStarted()) {
+                    rebuildSnapshot();
+                }
+            });
+        }
+    }
+
+    /**
+     * Rebuilds the node snapshot from the state cache. Called whenever the
+     * state cache reports a change, or the set of ejected nodes changes, so
+     * that reads never touch the cache.
+     */
+    synchronized void rebuildSnapshot() {
+        long start = System.nanoTime();
+        NodeSnapshot<T> previous = snapshot;
+        List<ChildData> children = new ArrayList<>(cache.getCurrentData());
+        Node<T>[] nodes = toNodes(previous, children);
+        List<ChildData> selectable = children;
+        if (outlierDetector != null) {
+            outlierDetector.update(children);
+            selectable = new ArrayList<>(children.size());
+            for (ChildData child : children) {
+                if (!outlierDetector.isEjected(child)) {
+                    selectable.add(child);
+                }
+            }
+            // with every node ejected there is nothing left to select from, so panic regardless of the threshold
+            if (selectable.size() < children.size()
+                    && (selectable.isEmpty() || outlierDetector.isPanicking(selectable.size(), children.size()))) {
+                log.warn("Only {} of {} nodes of {} are not ejected, ignoring ejections",
+                        selectable.size(), children.size(), serviceNodesPath);
+                selectable = children;
+            }
+        }
+        NodeSnapshot<T> next = new NodeSnapshot<>(++snapshotVersion, children, nodes, selectable);
+        selector.update(next.selectable, next.selectableNodes);
+        snapshot = next;
+        metrics.snapshotRebuilt(serviceName, System.nanoTime() - start, next.size());
+        if (!topologyListeners.isEmpty()) {
+            TopologyChange<T> change = diff(previous, next);
+            if (!change.isEmpty()) {
+                for (TopologyListener<T> listener : topologyListeners) {
+                    notifyListener(listener, change);
+                }
+            }
+        }
+        completeWaiters();
+    }
+
+    /**
+     * Builds the nodes of a new snapshot, which is only published once every
+     * payload is decoded so selecting a node never runs the decoder. Nodes
+     * whose path and version did not change since the previous snapshot are
+     * reused, so only added and updated nodes are decoded. Large changes, such
+     * as a service redeploying, are decoded in parallel. The hostnames of new
+     * nodes are resolved in the background.
+     */
+    private Node<T>[] toNodes(NodeSnapshot<T> previous, final List<ChildData> children) {
+        @SuppressWarnings("unchecked")
+        final Node<T>[] nodes = (Node<T>[]) new Node[children.size()];
+        final List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < nodes.length; i++) {
+            ChildData child = children.get(i);
+            int index = previous.indexOf(child.getPath());
+            if (index >= 0 && !isUpdated(previous.children.get(index), child)) {
+                nodes[i] = previous.nodes[index];
+            } else {
+                misses.add(i);
+            }
+        }
+        // lazy payloads are not decoded here, so there is nothing to spread
+        if (misses.size() < PARALLEL_DECODE_THRESHOLD || decoder == null || lazyDecoding) {
+            toNodes(children, nodes, misses, 0, misses.size());
+        } else {
+            toNodesInParallel(children, nodes, misses);
+        }
+        if (!misses.isEmpty()) {
+            List<Node<T>> built = new ArrayList<>(misses.size());
+            for (int index : misses) {
+                built.add(nodes[index]);
+            }
+            addressResolver.resolveAsync(built);
+        }
+        return nodes;
+    }
+
+    private void toNodesInParallel(final List<ChildData> children, final Node<T>[] nodes, final List<Integer> misses) {
+        int chunks = SharedExecutors.DECODE_THREADS + 1;
+        int chunkSize = (misses.size() + chunks - 1) / chunks;
+        List<CompletableFuture<Void>> decoding = new ArrayList<>(chunks);
+        for (int from = chunkSize; from < misses.size(); from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(from + chunkSize, misses.size());
+            decoding.add(CompletableFuture.runAsync(() -> toNodes(children, nodes, misses, start, end),
+                    SharedExecutors.decodeExecutor()));
+        }
+        // this thread decodes the first chunk rather than wait idle
+        toNodes(children, nodes, misses, 0, Math.min(chunkSize, misses.size()));
+        CompletableFuture.allOf(decoding.toArray(new CompletableFuture[decoding.size()])).join();
+    }
+
+    private void toNodes(List<ChildData> children, Node<T>[] nodes, List<Integer> indexes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int index = indexes.get(i);
+            nodes[index] = toNode(children.get(index));
+        }
+    }
+
+    private TopologyChange<T> diff(NodeSnapshot<T> previous, NodeSnapshot<T> next) {
+        boolean[] kept = new boolean[previous.size()];
+        Set<Node<T>> added = identitySet();
+        Set<Node<T>> updated = identitySet();
+        for (int i = 0; i < next.size(); i++) {
+            ChildData child = next.children.get(i);
+            int index = previous.indexOf(child.getPath());
+            if (index < 0) {
+                added.add(next.nodes[i]);
+            } else {
+                kept[index] = true;
+                if (isUpdated(previous.children.get(index), child)) {
+                    updated.add(next.nodes[i]);
+                }
+            }
+        }
+        Set<Node<T>> removed = identitySet();
+        for (int i = 0; i < kept.length; i++) {
+            if (!kept[i]) {
+                removed.add(previous.nodes[i]);
+            }
+        }
+        return new TopologyChange<>(next.version, added, removed, updated);
+    }
+
+    // nodes of one snapshot are distinct instances, and comparing them by identity never decodes a payload
+    private static <T> Set<Node<T>> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<Node<T>, Boolean>());
+    }
+
+    /**
+     * @return whether the child changed, compared by version when both have a stat
+     */
+    private static boolean isUpdated(ChildData previous, ChildData next) {
+        if (previous == next) {
+            return false;
+        }
+        if (previous.getStat() != null && next.getStat() != null) {
+            return previous.getStat().getMzxid() != next.getStat().getMzxid();
+        }
+        return !Arrays.equals(previous.getData(), next.getData());
+    }
+
+    private void notifyListener(TopologyListener<T> listener, TopologyChange<T> change) {
         try {
-            return deserializedNodeCache.get(data, () -> _toNode(data));
-        } catch (ExecutionException e) {
-            throw Throwables.propagate(e);
+            listener.topologyChanged(change);
+        } catch (Exception e) {
+            log.error("Error notifying topology listener for {}", serviceName, e);
         }
     }
 
-    Node<T> _toNode(ChildData data) {
+    long getSnapshotVersion() {
+        return snapshot.version;
+    }
+
+    Node<T> toNode(ChildData data) {
         String path = pathFromData(data);
         // This is somewhat hacky support for ipv6 with the same host:port notation
         int l = path.lastIndexOf(':');
         String host = path.substring(0, l);
         String port = path.substring(l + 1);
-        T payload = null;
-        if (data.getData() != null && data.getData().length > 0) {
-            if (decoder == null) {
-                log.debug("Data found but no decoder to parse it with");
-            } else {
-                try {
-                    payload = decoder.decode(data.getData());
-                } catch (Exception ex) {
-                    decoder.handleException(ex);
-                }
-            }
+        // the bytes are used as held by the child, without copying them
+        byte[] bytes = data.getData();
+        if (bytes == null || bytes.length == 0) {
+            return new Node<>(host, Integer.valueOf(port), null);
+        }
+        if (decoder == null) {
+            log.debug("Data found but no decoder to parse it with");
+            return new Node<>(host, Integer.valueOf(port), null);
+        }
+        if (lazyDecoding) {
+            return new LazyNode<>(host, Integer.valueOf(port), bytes, this::decode);
+        }
+        return new Node<>(host, Integer.valueOf(port), decode(bytes));
+    }
+
+    private T decode(byte[] bytes) {
+        long start = System.nanoTime();
+        try {
+            T payload = decoder.decode(bytes);
+            metrics.payloadDecoded(serviceName, System.nanoTime() - start);
+            return payload;
+        } catch (Exception ex) {
+            metrics.payloadDecodeFailed(serviceName);
+            decoder.handleException(ex);
+            return null;
         }
-        return new Node<>(host, Integer.valueOf(port), payload);
     }
 
     Optional<ChildData> nextChildData() {
-        final List<ChildData> children = cache.getCurrentData();
+        final List<ChildData> children = snapshot.selectable;
         if (children.isEmpty()) {
             return Optional.absent();
         }
-        return Optional.of(selector.choose(cache.getCurrentData()));
+        return Optional.of(selector.choose(children));
     }
 
     String pathFromData(ChildData data) {
@@ -128,10 +816,19 @@ public class DiscoClient<T> {
     }
 
     public int numServiceHosts() {
-        return cache.getCurrentData().size();
+        return snapshot.size();
     }
 
     public CuratorFramework getFramework() {
         return framework;
     }
+
+    private final class SnapshotWaiter {
+        final Predicate<NodeSnapshot<T>> condition;
+        final CompletableFuture<NodeSnapshot<T>> future = new CompletableFuture<>();
+
+        SnapshotWaiter(Predicate<NodeSnapshot<T>> condition) {
+            this.condition = condition;
+        }
+    }
 }
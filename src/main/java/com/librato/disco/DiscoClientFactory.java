@@ -1,80 +1,257 @@
 package com.librato.disco;
 
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Factory for building DiscoClients using the same {@link org.apache.curator.framework.CuratorFramework} instance
+ * <p>
+ * Clients are shared by service name: building a client for a service that
+ * already has one returns the same client, which only stops once every caller
+ * that built it called {@link DiscoClient#stop()}. Clients built by
+ * the factory handle Zookeeper events and timers on a small set of threads
+ * shared by all of them, instead of a few threads per client.
  */
 public class DiscoClientFactory<T> {
+    private static final int START_THREADS = 4;
+    private static final ExecutorService startExecutor;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(START_THREADS, START_THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-client-start-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        startExecutor = executor;
+    }
+    // service name -> client, guarded by itself
+    private final Map<String, SharedClient> clients = new HashMap<>();
     private final CuratorFramework framework;
-    private final SelectorStrategy strategy;
+    private final Supplier<SelectorStrategy> strategy;
     private final Decoder<T> decoder;
     private final ILevel2CacheStrategy l2CacheStrategy;
+    private final DiscoMetrics metrics;
+    private final ServicesTreeCache servicesCache;
+    private final File snapshotDirectory;
 
     /**
-     * Constructor that defaults to using {@link RoundRobinSelectorStrategy} strategy
+     * Constructor that defaults to using a {@link RoundRobinSelectorStrategy} per client
      * @param framework Initialized {@link CuratorFramework}
      */
     public DiscoClientFactory(CuratorFramework framework) {
-        this(framework, new RoundRobinSelectorStrategy());
+        this(framework, (Supplier<SelectorStrategy>) RoundRobinSelectorStrategy::new, null, null);
     }
 
     /**
      * @param framework Initialized {@link CuratorFramework}
-     * @param strategy Selector for use in this factory
+     * @param strategy Selector shared by every client of this factory. Use a Supplier constructor for
+     *                 strategies that keep per-client state, such as {@link LeastOutstandingSelectorStrategy}.
      */
     public DiscoClientFactory(CuratorFramework framework, SelectorStrategy strategy) {
-        this.framework = framework;
-        this.strategy = strategy;
-        this.decoder = null;
-        this.l2CacheStrategy = null;
+        this(framework, strategy, null, null);
     }
 
     /**
      * @param framework Initialized {@link CuratorFramework}
-     * @param strategy Selector for use in this factory
+     * @param strategy Selector shared by every client of this factory. Use a Supplier constructor for
+     *                 strategies that keep per-client state, such as {@link LeastOutstandingSelectorStrategy}.
      * @param decoder Decoder for use in thie factory
      */
     public DiscoClientFactory(CuratorFramework framework, SelectorStrategy strategy, Decoder<T> decoder) {
-        this.framework = framework;
-        this.strategy = strategy;
-        this.decoder = decoder;
-        this.l2CacheStrategy = null;
+        this(framework, strategy, decoder, null);
     }
 
     /**
      * @param framework Initialized {@link CuratorFramework}
-     * @param strategy Selector for use in this factory
+     * @param strategy Selector shared by every client of this factory. Use a Supplier constructor for
+     *                 strategies that keep per-client state, such as {@link LeastOutstandingSelectorStrategy}.
      * @param decoder Decoder for use in thie factory
      * @param l2CacheStrategy a strategy supplier for using the l2 cache. null if no caching is desired.
      */
     public DiscoClientFactory(CuratorFramework framework, SelectorStrategy strategy, Decoder<T> decoder, ILevel2CacheStrategy l2CacheStrategy) {
+        this(framework, () -> strategy, decoder, l2CacheStrategy);
+    }
+
+    /**
+     * Use this constructor for selector strategies that keep per-client state,
+     * such as {@link LeastOutstandingSelectorStrategy}, so every client gets its own instance.
+     * @param framework Initialized {@link CuratorFramework}
+     * @param strategySupplier Supplies a new selector for each client built by this factory
+     * @param decoder Decoder for use in thie factory
+     * @param l2CacheStrategy a strategy supplier for using the l2 cache. null if no caching is desired.
+     */
+    public DiscoClientFactory(CuratorFramework framework, Supplier<SelectorStrategy> strategySupplier, Decoder<T> decoder, ILevel2CacheStrategy l2CacheStrategy) {
+        this(framework, strategySupplier, decoder, l2CacheStrategy, DiscoMetrics.NOOP);
+    }
+
+    /**
+     * @param framework Initialized {@link CuratorFramework}
+     * @param strategySupplier Supplies a new selector for each client built by this factory
+     * @param decoder Decoder for use in thie factory
+     * @param l2CacheStrategy a strategy supplier for using the l2 cache. null if no caching is desired.
+     * @param metrics Receives the measurements of every client built by this factory
+     */
+    public DiscoClientFactory(CuratorFramework framework, Supplier<SelectorStrategy> strategySupplier, Decoder<T> decoder, ILevel2CacheStrategy l2CacheStrategy, DiscoMetrics metrics) {
+        this(framework, strategySupplier, decoder, l2CacheStrategy, metrics, null);
+    }
+
+    /**
+     * Use this constructor in processes that discover many services, so that
+     * all clients watch Zookeeper through a single {@link ServicesTreeCache}.
+     * @param framework Initialized {@link CuratorFramework}
+     * @param strategySupplier Supplies a new selector for each client built by this factory
+     * @param decoder Decoder for use in thie factory
+     * @param l2CacheStrategy a strategy supplier for using the l2 cache. null if no caching is desired.
+     * @param metrics Receives the measurements of every client built by this factory
+     * @param servicesCache Watches all services for the clients of this factory. null to watch each service separately.
+     */
+    public DiscoClientFactory(CuratorFramework framework, Supplier<SelectorStrategy> strategySupplier, Decoder<T> decoder, ILevel2CacheStrategy l2CacheStrategy, DiscoMetrics metrics, ServicesTreeCache servicesCache) {
+        this(framework, strategySupplier, decoder, l2CacheStrategy, metrics, servicesCache, null);
+    }
+
+    /**
+     * @param framework Initialized {@link CuratorFramework}
+     * @param strategySupplier Supplies a new selector for each client built by this factory
+     * @param decoder Decoder for use in thie factory
+     * @param l2CacheStrategy a strategy supplier for using the l2 cache. null if no caching is desired.
+     * @param metrics Receives the measurements of every client built by this factory
+     * @param servicesCache Watches all services for the clients of this factory. null to watch each service separately.
+     * @param snapshotDirectory Where clients persist their nodes to serve them on the next start
+     *                          until Zookeeper is read, see {@link SnapshotFileStateCache}. null to not persist.
+     */
+    public DiscoClientFactory(CuratorFramework framework, Supplier<SelectorStrategy> strategySupplier, Decoder<T> decoder, ILevel2CacheStrategy l2CacheStrategy, DiscoMetrics metrics, ServicesTreeCache servicesCache, File snapshotDirectory) {
         this.framework = framework;
-        this.strategy = strategy;
+        this.strategy = strategySupplier;
         this.decoder = decoder;
         this.l2CacheStrategy = l2CacheStrategy;
+        this.metrics = metrics;
+        this.servicesCache = servicesCache;
+        this.snapshotDirectory = snapshotDirectory;
     }
 
     /**
      * Builds a {@link DiscoClient} for given service name, and calls
-     * {@link DiscoClient#start()}
+     * {@link DiscoClient#start()}, or returns the started client already
+     * built for it
      * @param serviceName Passed into {@link DiscoClient} constructor
-     * @return new initialized {@link DiscoClient} instance
+     * @return initialized {@link DiscoClient} instance, to be stopped once no longer used
      */
     public DiscoClient<T> buildClient(final String serviceName) {
-        final DiscoClient<T> client;
-        client = new DiscoClient<>(
-                framework,
-                serviceName,
-                strategy,
-                decoder,
-                l2CacheStrategy);
         try {
-            client.start();
-        } catch (Exception e) {
-            throw Throwables.propagate(e);
+            return acquire(serviceName, false).get();
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Builds a {@link DiscoClient} for given service name and starts it
+     * without blocking the caller, as starting reads the service's nodes
+     * from Zookeeper. Compose with {@link DiscoClient#awaitMinimumNodes(int)}
+     * to also wait for nodes to appear.
+     * @param serviceName Passed into {@link DiscoClient} constructor
+     * @return a future of the started client, failed if it could not be started
+     */
+    public CompletableFuture<DiscoClient<T>> buildClientAsync(final String serviceName) {
+        return acquire(serviceName, true);
+    }
+
+    private CompletableFuture<DiscoClient<T>> acquire(String serviceName, boolean async) {
+        final SharedClient shared;
+        boolean created = false;
+        synchronized (clients) {
+            SharedClient existing = clients.get(serviceName);
+            if (existing == null) {
+                existing = new SharedClient(serviceName);
+                clients.put(serviceName, existing);
+                created = true;
+            }
+            existing.references++;
+            shared = existing;
+        }
+        if (created) {
+            if (async) {
+                startExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        shared.start();
+                    }
+                });
+            } else {
+                shared.start();
+            }
+        }
+        return shared.started;
+    }
+
+    private final class SharedClient {
+        final String serviceName;
+        final DiscoClient<T> client;
+        final CompletableFuture<DiscoClient<T>> started = new CompletableFuture<>();
+        // guarded by clients
+        int references;
+
+        SharedClient(String serviceName) {
+            this.serviceName = serviceName;
+            this.client = new DiscoClient<>(
+                    framework,
+                    serviceName,
+                    strategy.get(),
+                    decoder,
+                    l2CacheStrategy,
+                    null,
+                    metrics,
+                    stateCache(serviceName));
+            this.client.setReleaseHook(this::release);
+        }
+
+        private IStateCache stateCache(String serviceName) {
+            IStateCache stateCache = servicesCache != null
+                    ? servicesCache.viewFor(serviceName)
+                    : new PathChildrenStateCache(framework, serviceName, DiscoClient.nodesPath(serviceName),
+                    SharedExecutors.eventExecutor(serviceName));
+            return snapshotDirectory != null
+                    ? new SnapshotFileStateCache(serviceName, stateCache, snapshotDirectory)
+                    : stateCache;
+        }
+
+        void start() {
+            try {
+                client.start();
+                started.complete(client);
+            } catch (Exception e) {
+                synchronized (clients) {
+                    clients.remove(serviceName, this);
+                }
+                started.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return whether the last reference was released and the client should stop
+         */
+        boolean release() {
+            synchronized (clients) {
+                // stops past the last reference are no-ops rather than failing
+                if (references == 0 || --references > 0) {
+                    return false;
+                }
+                clients.remove(serviceName, this);
+                return true;
+            }
         }
-        return client;
     }
 }
@@ -0,0 +1,69 @@
+package com.librato.disco;
+
+/**
+ * Receives measurements from discovery internals: {@link DiscoClient}
+ * selections, snapshot rebuilds and decoding, and {@link Level2StateCache}
+ * promotions. Implementations bridge to a metrics library of choice;
+ * {@link InMemoryDiscoMetrics} keeps them in memory.
+ * <p>
+ * {@link #nodeSelected(String, Node)} is called on every selection, so
+ * implementations must be cheap, thread safe and should not allocate.
+ * Every method defaults to doing nothing.
+ */
+public interface DiscoMetrics {
+    /**
+     * Records nothing, the default when no metrics are configured
+     */
+    DiscoMetrics NOOP = new DiscoMetrics() {
+    };
+
+    /**
+     * A node was handed out by one of the selection methods of {@link DiscoClient}
+     */
+    default void nodeSelected(String serviceName, Node<?> node) {
+    }
+
+    /**
+     * The node snapshot was rebuilt after a membership change
+     *
+     * @param durationNanos how long decoding and updating the selector took
+     * @param nodes         the number of nodes in the new snapshot
+     */
+    default void snapshotRebuilt(String serviceName, long durationNanos, int nodes) {
+    }
+
+    /**
+     * A node's payload was decoded by the configured {@link Decoder}
+     */
+    default void payloadDecoded(String serviceName, long durationNanos) {
+    }
+
+    /**
+     * The configured {@link Decoder} failed to decode a node's payload
+     */
+    default void payloadDecodeFailed(String serviceName) {
+    }
+
+    /**
+     * The l2 cache started serving its frozen data
+     */
+    default void l2Promoted(String serviceName) {
+    }
+
+    /**
+     * The l2 cache returned to serving the delegate data
+     *
+     * @param promotedMillis how long the l2 cache was promoted
+     */
+    default void l2Demoted(String serviceName, long promotedMillis) {
+    }
+
+    /**
+     * The sizes of the caches of a service, reported whenever they are refreshed
+     *
+     * @param l1Size the number of nodes in Zookeeper
+     * @param l2Size the number of nodes in the l2 cache, 0 when it is disabled
+     */
+    default void cacheSizes(String serviceName, int l1Size, int l2Size) {
+    }
+}
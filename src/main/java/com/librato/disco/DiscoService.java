@@ -2,25 +2,54 @@ package com.librato.disco;
 
 import com.google.common.base.Preconditions;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Handle starting/stopping of the zookeeper client (framework) and creation of ephemeral node for service discovery
+ * <p>
+ * Processes exposing several services or ports can register all of them
+ * with {@link #start(List, boolean)}, which creates, re-creates on reconnect
+ * and deletes their nodes in a single Zookeeper transaction.
  */
 public class DiscoService {
     private static final Logger log = LoggerFactory.getLogger(DiscoService.class);
     private static final String baseNodeTemplate = "/services/%s/nodes";
+    // payload updates are written at most this often, and coalesced in between
+    static final long MIN_PAYLOAD_UPDATE_MILLIS = 1000;
     private final String baseNode;
     final CuratorFramework framework;
     String nodeName;
     int port;
     String node;
-    byte[] payload;
+    // read when re-registering, so it always holds the latest update
+    volatile byte[] payload;
+    // guarded by this
+    private long lastPayloadUpdate;
+    private ScheduledFuture<?> pendingPayloadUpdate;
+    // path -> payload of every node registered through start(List, boolean), null otherwise
+    Map<String, byte[]> nodes;
+    // Zookeeper session the nodes were registered in
+    private volatile long registeredSession;
     ConnectionStateListener listener;
 
     public DiscoService(CuratorFramework framework, String serviceName) {
@@ -28,6 +57,14 @@ public class DiscoService {
         this.baseNode = String.format(baseNodeTemplate, serviceName);
     }
 
+    /**
+     * Use with {@link #start(List, boolean)}, as the registrations name their services
+     */
+    public DiscoService(CuratorFramework framework) {
+        this.framework = framework;
+        this.baseNode = null;
+    }
+
     public void start(String nodeName, int port, boolean addShutdownHook, byte[] payload) throws Exception {
         Preconditions.checkArgument(framework.getState() == CuratorFrameworkState.STARTED);
         this.nodeName = nodeName;
@@ -47,6 +84,52 @@ public class DiscoService {
             }
         };
 
+        ensureBaseNode(baseNode);
+
+        log.info("Registering with ZK as node {}", node);
+        deleteAndCreateNode();
+
+        watch(addShutdownHook);
+    }
+
+    /**
+     * Registers several nodes at once, such as one per port or per service
+     * name a process exposes. Nodes are created in a single transaction,
+     * and re-created in a single transaction after reconnecting, so that
+     * registering costs one round trip rather than three per node.
+     */
+    public void start(List<ServiceRegistration> registrations, boolean addShutdownHook) throws Exception {
+        Preconditions.checkArgument(framework.getState() == CuratorFrameworkState.STARTED);
+        Preconditions.checkArgument(!registrations.isEmpty(), "Nothing to register");
+        Map<String, byte[]> nodes = new LinkedHashMap<>();
+        Set<String> baseNodes = new LinkedHashSet<>();
+        for (ServiceRegistration registration : registrations) {
+            String base = String.format(baseNodeTemplate, registration.getServiceName());
+            baseNodes.add(base);
+            nodes.put(base + "/" + registration.getNodeName() + ":" + registration.getPort(), registration.getPayload());
+        }
+        this.nodes = nodes;
+        this.listener = new ConnectionStateListener() {
+            @Override
+            public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
+                if (connectionState == ConnectionState.RECONNECTED) {
+                    log.info("Re-registering with ZK as nodes {}", nodes.keySet());
+                    registerNodes();
+                }
+            }
+        };
+
+        for (String base : baseNodes) {
+            ensureBaseNode(base);
+        }
+
+        log.info("Registering with ZK as nodes {}", nodes.keySet());
+        registerNodes();
+
+        watch(addShutdownHook);
+    }
+
+    private void ensureBaseNode(String baseNode) throws Exception {
         // Ensure the parent paths exist persistently
         while (framework.checkExists().forPath(baseNode) == null) {
             log.info("Creating base node {}", baseNode);
@@ -55,10 +138,9 @@ public class DiscoService {
                     .withMode(CreateMode.PERSISTENT)
                     .forPath(baseNode);
         }
+    }
 
-        log.info("Registering with ZK as node {}", node);
-        deleteAndCreateNode();
-
+    private void watch(boolean addShutdownHook) {
         framework.getConnectionStateListenable().addListener(listener);
         if (addShutdownHook) {
             log.info("Adding shutdown hook for disco service");
@@ -86,9 +168,120 @@ public class DiscoService {
         }
     }
 
+    /**
+     * Creates the registered nodes in one transaction. The nodes still exist
+     * if they were created in the current session, and are deleted in the same
+     * transaction, while a new session means they expired with the old one.
+     */
+    private void registerNodes() {
+        try {
+            long session = framework.getZookeeperClient().getZooKeeper().getSessionId();
+            try {
+                commit(session == registeredSession ? nodes.keySet() : Collections.<String>emptySet(), true);
+            } catch (KeeperException.NoNodeException | KeeperException.NodeExistsException e) {
+                // nodes were deleted, or left by a previous session that did not expire yet
+                commit(existingNodes(), true);
+            }
+            registeredSession = session;
+        } catch (Exception e) {
+            log.error("Exception recreating paths", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void commit(Collection<String> deletes, boolean create) throws Exception {
+        List<CuratorOp> operations = new ArrayList<>();
+        for (String path : deletes) {
+            operations.add(framework.transactionOp().delete().forPath(path));
+        }
+        if (create) {
+            for (Map.Entry<String, byte[]> entry : nodes.entrySet()) {
+                operations.add(framework.transactionOp().create()
+                        .withMode(CreateMode.EPHEMERAL)
+                        .forPath(entry.getKey(), entry.getValue()));
+            }
+        }
+        if (!operations.isEmpty()) {
+            framework.transaction().forOperations(operations);
+        }
+    }
+
+    private List<String> existingNodes() throws Exception {
+        List<String> existing = new ArrayList<>();
+        for (String path : nodes.keySet()) {
+            if (framework.checkExists().forPath(path) != null) {
+                existing.add(path);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Replaces the payload of the registered node, for example to publish
+     * its load, see {@link LoadReporter}. Writes are rate limited to one
+     * every {@link #MIN_PAYLOAD_UPDATE_MILLIS}: updates in between are
+     * coalesced, so only the latest one is written. Writes do not block the
+     * caller, and a node re-registered after reconnecting carries the latest
+     * payload.
+     */
+    public void updatePayload(byte[] payload) {
+        Preconditions.checkState(node != null, "Only nodes registered through start(String, int, boolean, byte[]) can be updated");
+        synchronized (this) {
+            this.payload = payload;
+            if (pendingPayloadUpdate != null) {
+                // the pending write picks up this payload
+                return;
+            }
+            long delay = Math.max(lastPayloadUpdate + MIN_PAYLOAD_UPDATE_MILLIS - System.currentTimeMillis(), 0);
+            pendingPayloadUpdate = SharedExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writePayload();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writePayload() {
+        byte[] current;
+        synchronized (this) {
+            pendingPayloadUpdate = null;
+            lastPayloadUpdate = System.currentTimeMillis();
+            current = payload;
+        }
+        try {
+            framework.setData().inBackground(new BackgroundCallback() {
+                @Override
+                public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                    // without a node, re-registering creates it with the latest payload
+                    if (event.getResultCode() != KeeperException.Code.OK.intValue()
+                            && event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+                        log.error("Error updating payload of {}: {}", node, KeeperException.Code.get(event.getResultCode()));
+                    }
+                }
+            }).forPath(node, current);
+        } catch (Exception e) {
+            log.error("Error updating payload of {}", node, e);
+        }
+    }
+
     public void stop() throws Exception {
+        synchronized (this) {
+            if (pendingPayloadUpdate != null) {
+                pendingPayloadUpdate.cancel(false);
+                pendingPayloadUpdate = null;
+            }
+        }
         framework.getConnectionStateListenable().removeListener(listener);
-        deleteNode();
+        if (nodes != null) {
+            try {
+                commit(nodes.keySet(), false);
+            } catch (KeeperException.NoNodeException e) {
+                commit(existingNodes(), false);
+            }
+        } else {
+            deleteNode();
+        }
     }
 
     private void createNode() throws Exception {
@@ -0,0 +1,32 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+/**
+ * A selector strategy that learns from the requests made against the nodes
+ * it chose. {@link DiscoClient} reports to it through {@link NodeLease},
+ * {@link DiscoClient#recordLatency(Node, long)} and {@link DiscoClient#reportFailure(Node)}.
+ */
+public interface FeedbackSelectorStrategy extends SelectorStrategy {
+    /**
+     * A request against the given child has been started
+     */
+    void requestStarted(ChildData child);
+
+    /**
+     * A request previously reported through {@link #requestStarted(ChildData)} has finished
+     */
+    void requestFinished(ChildData child);
+
+    /**
+     * A request against the given child completed in the given time
+     */
+    default void recordLatency(ChildData child, long nanos) {
+    }
+
+    /**
+     * A request against the given child failed
+     */
+    default void recordFailure(ChildData child) {
+    }
+}
@@ -0,0 +1,243 @@
+package com.librato.disco;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Sends requests to the nodes of a {@link DiscoClient}, and when no reply
+ * arrived within the given percentile of recent latencies, sends a second
+ * request to a different node. The first successful reply wins and the
+ * other request is cancelled. Until enough latencies were observed no
+ * requests are hedged.
+ * <p>
+ * Every request adds the budget percentage of a hedge to a balance which
+ * each hedge draws from, so hedging adds at most that share of extra load.
+ * The balance is capped so idle periods do not allow a burst of hedges.
+ * <p>
+ * Share an instance between callers of the same service so they share
+ * latency statistics and the budget. {@link DiscoClient#hedge(Function)}
+ * uses a default instance per client.
+ */
+public class Hedger<T> {
+    // the number of recent latencies the delay is computed from, a power of two
+    private static final int SAMPLES = 1024;
+    // the delay is recomputed every this many latencies, and first once this many were seen
+    private static final int RECOMPUTE_INTERVAL = 64;
+    // the budget balance is kept in thousandths of a hedge
+    private static final long HEDGE_COST = 1000;
+    private static final long MAX_BALANCE = 10 * HEDGE_COST;
+    private final DiscoClient<T> client;
+    private final double percentile;
+    private final long deposit;
+    private final long minDelayNanos;
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong balance = new AtomicLong();
+    // negative until enough latencies were recorded
+    private volatile long delayNanos = -1;
+
+    /**
+     * Hedges after the 95th percentile latency, but no sooner than after a
+     * millisecond, adding at most 5% extra requests
+     */
+    public Hedger(DiscoClient<T> client) {
+        this(client, 0.95, 5, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param percentile    the percentile of recent latencies after which to hedge, between 0 and 1
+     * @param budgetPercent the maximum number of hedges as a percentage of requests
+     * @param minDelay      the minimum time to wait before hedging
+     */
+    public Hedger(DiscoClient<T> client, double percentile, double budgetPercent, long minDelay, TimeUnit unit) {
+        Preconditions.checkArgument(percentile > 0 && percentile <= 1, "percentile must be in (0, 1]");
+        Preconditions.checkArgument(budgetPercent >= 0 && budgetPercent <= 100, "budgetPercent must be in [0, 100]");
+        this.client = client;
+        this.percentile = percentile;
+        this.deposit = (long) (budgetPercent * HEDGE_COST / 100);
+        this.minDelayNanos = unit.toNanos(minDelay);
+    }
+
+    /**
+     * Sends a request, hedging it if it is slow. The request function must
+     * not block, as hedged requests are sent from a shared timer thread.
+     *
+     * @param request sends a request to the given node
+     * @return the reply of the first request to succeed, or the failure of
+     * the last one to fail. Fails with an {@link IllegalStateException} if
+     * the service has no nodes.
+     */
+    public <R> CompletableFuture<R> execute(Function<Node<T>, CompletableFuture<R>> request) {
+        Optional<NodeLease<T>> lease = client.acquire();
+        if (!lease.isPresent()) {
+            CompletableFuture<R> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("No nodes available"));
+            return failed;
+        }
+        deposit();
+        final Attempts<R> attempts = new Attempts<>(request);
+        attempts.send(lease.get());
+        long delay = delayNanos;
+        if (delay >= 0 && !attempts.result.isDone()) {
+            final Node<T> first = lease.get().getNode();
+            attempts.timer(SharedExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (attempts.result.isDone() || !withdraw()) {
+                        return;
+                    }
+                    Optional<NodeLease<T>> other = client.acquireOther(first);
+                    if (other.isPresent()) {
+                        attempts.send(other.get());
+                    } else {
+                        // there is no other node, return the budget
+                        deposit(HEDGE_COST);
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS));
+        }
+        return attempts.result;
+    }
+
+    /**
+     * @return the current hedging delay, or a negative number if too few latencies were observed
+     */
+    long getDelayNanos() {
+        return delayNanos;
+    }
+
+    void recordLatency(long nanos) {
+        long n = recorded.getAndIncrement();
+        samples.set((int) (n & (SAMPLES - 1)), nanos);
+        if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+            int count = (int) Math.min(n + 1, SAMPLES);
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            int index = Math.max((int) Math.ceil(percentile * count) - 1, 0);
+            delayNanos = Math.max(sorted[index], minDelayNanos);
+        }
+    }
+
+    private void deposit() {
+        deposit(deposit);
+    }
+
+    private void deposit(long amount) {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(current + amount, MAX_BALANCE);
+            if (current == next || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdraw() {
+        while (true) {
+            long current = balance.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The requests sent for a single call to {@link #execute(Function)}
+     */
+    private final class Attempts<R> {
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        private final Function<Node<T>, CompletableFuture<R>> request;
+        private final List<CompletableFuture<R>> inFlight = new ArrayList<>(2);
+        private int outstanding;
+        private ScheduledFuture<?> timer;
+
+        Attempts(Function<Node<T>, CompletableFuture<R>> request) {
+            this.request = request;
+            result.whenComplete((value, error) -> cancelAll());
+        }
+
+        void send(final NodeLease<T> lease) {
+            synchronized (this) {
+                outstanding++;
+            }
+            final long start = System.nanoTime();
+            CompletableFuture<R> attempt;
+            try {
+                attempt = request.apply(lease.getNode());
+            } catch (RuntimeException e) {
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(e);
+            }
+            synchronized (this) {
+                inFlight.add(attempt);
+            }
+            attempt.whenComplete((value, error) -> {
+                if (error == null) {
+                    lease.close();
+                    recordLatency(System.nanoTime() - start);
+                    result.complete(value);
+                } else if (result.isDone()) {
+                    // lost to the other request and cancelled
+                    lease.release();
+                } else {
+                    lease.fail();
+                    failed(error);
+                }
+            });
+            if (result.isDone()) {
+                attempt.cancel(true);
+            }
+        }
+
+        void timer(ScheduledFuture<?> timer) {
+            synchronized (this) {
+                this.timer = timer;
+            }
+            if (result.isDone()) {
+                timer.cancel(false);
+            }
+        }
+
+        private void failed(Throwable error) {
+            boolean last;
+            synchronized (this) {
+                // failures are not retried, but a hedge already sent may still succeed
+                last = --outstanding == 0;
+            }
+            if (last) {
+                result.completeExceptionally(error);
+            }
+        }
+
+        private void cancelAll() {
+            List<CompletableFuture<R>> attempts;
+            ScheduledFuture<?> pending;
+            synchronized (this) {
+                attempts = new ArrayList<>(inFlight);
+                pending = timer;
+            }
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            for (CompletableFuture<R> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+}
@@ -12,6 +12,16 @@ import java.util.List;
 public interface IStateCache {
     List<ChildData> getCurrentData();
 
+    /**
+     * Registers a listener to be told when the current data changes. A
+     * {@link DiscoClient} only sees changes its cache reports, so caches must
+     * implement this to be used by one.
+     */
+    default void addListener(IStateCacheListener listener) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " does not report changes, implement addListener to use it with a DiscoClient");
+    }
+
     void start() throws Exception;
 
     void stop() throws Exception;
@@ -0,0 +1,10 @@
+package com.librato.disco;
+
+/**
+ * Notified by an {@link IStateCache} whenever the data it would return from
+ * {@link IStateCache#getCurrentData()} may have changed. Implementations are
+ * called on the cache's event thread and should not block.
+ */
+public interface IStateCacheListener {
+    void childrenChanged();
+}
@@ -0,0 +1,181 @@
+package com.librato.disco;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link DiscoMetrics} that keeps counters in memory, to be read through
+ * {@link #forService(String)}. Counters are striped {@link LongAdder}s so
+ * recording on the selection path does not contend between threads.
+ * <p>
+ * Selections are counted per host and port for as long as this instance lives,
+ * including nodes that have since left the service.
+ */
+public class InMemoryDiscoMetrics implements DiscoMetrics {
+    private final ConcurrentMap<String, ServiceMetrics> services = new ConcurrentHashMap<>();
+
+    /**
+     * @return the metrics recorded for a service, or null if nothing was recorded for it
+     */
+    public ServiceMetrics forService(String serviceName) {
+        return services.get(serviceName);
+    }
+
+    public Set<String> getServiceNames() {
+        return Collections.unmodifiableSet(services.keySet());
+    }
+
+    private ServiceMetrics service(String serviceName) {
+        ServiceMetrics metrics = services.get(serviceName);
+        if (metrics == null) {
+            metrics = services.computeIfAbsent(serviceName, name -> new ServiceMetrics());
+        }
+        return metrics;
+    }
+
+    @Override
+    public void nodeSelected(String serviceName, Node<?> node) {
+        // keyed by host and port, which neither changes with the payload nor decodes it
+        ConcurrentMap<HostAndPort, LongAdder> selections = service(serviceName).selections;
+        HostAndPort hostAndPort = node.getHostAndPort();
+        LongAdder count = selections.get(hostAndPort);
+        if (count == null) {
+            count = selections.computeIfAbsent(hostAndPort, n -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    @Override
+    public void snapshotRebuilt(String serviceName, long durationNanos, int nodes) {
+        ServiceMetrics metrics = service(serviceName);
+        metrics.snapshotRebuilds.increment();
+        metrics.snapshotRebuildNanos.add(durationNanos);
+    }
+
+    @Override
+    public void payloadDecoded(String serviceName, long durationNanos) {
+        ServiceMetrics metrics = service(serviceName);
+        metrics.decodes.increment();
+        metrics.decodeNanos.add(durationNanos);
+    }
+
+    @Override
+    public void payloadDecodeFailed(String serviceName) {
+        service(serviceName).decodeFailures.increment();
+    }
+
+    @Override
+    public void l2Promoted(String serviceName) {
+        ServiceMetrics metrics = service(serviceName);
+        metrics.l2Promotions.increment();
+        metrics.l2Promoted = true;
+    }
+
+    @Override
+    public void l2Demoted(String serviceName, long promotedMillis) {
+        ServiceMetrics metrics = service(serviceName);
+        metrics.l2Demotions.increment();
+        metrics.l2PromotedMillis.add(promotedMillis);
+        metrics.l2Promoted = false;
+    }
+
+    @Override
+    public void cacheSizes(String serviceName, int l1Size, int l2Size) {
+        ServiceMetrics metrics = service(serviceName);
+        metrics.l1Size = l1Size;
+        metrics.l2Size = l2Size;
+    }
+
+    /**
+     * The metrics of a single service. Totals are cumulative since the first
+     * recording, sizes and the promotion state are the latest reported.
+     */
+    public static class ServiceMetrics {
+        private final ConcurrentMap<HostAndPort, LongAdder> selections = new ConcurrentHashMap<>();
+        private final LongAdder snapshotRebuilds = new LongAdder();
+        private final LongAdder snapshotRebuildNanos = new LongAdder();
+        private final LongAdder decodes = new LongAdder();
+        private final LongAdder decodeNanos = new LongAdder();
+        private final LongAdder decodeFailures = new LongAdder();
+        private final LongAdder l2Promotions = new LongAdder();
+        private final LongAdder l2Demotions = new LongAdder();
+        private final LongAdder l2PromotedMillis = new LongAdder();
+        private volatile boolean l2Promoted;
+        private volatile int l1Size;
+        private volatile int l2Size;
+
+        ServiceMetrics() {
+        }
+
+        /**
+         * @return the number of selections of each node, by host and port
+         */
+        public Map<HostAndPort, Long> getSelections() {
+            Map<HostAndPort, Long> result = new HashMap<>();
+            for (Map.Entry<HostAndPort, LongAdder> entry : selections.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+            return result;
+        }
+
+        public long getSelectionCount() {
+            long total = 0;
+            for (LongAdder count : selections.values()) {
+                total += count.sum();
+            }
+            return total;
+        }
+
+        public long getSnapshotRebuilds() {
+            return snapshotRebuilds.sum();
+        }
+
+        public long getSnapshotRebuildNanos() {
+            return snapshotRebuildNanos.sum();
+        }
+
+        public long getDecodes() {
+            return decodes.sum();
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos.sum();
+        }
+
+        public long getDecodeFailures() {
+            return decodeFailures.sum();
+        }
+
+        public long getL2Promotions() {
+            return l2Promotions.sum();
+        }
+
+        public long getL2Demotions() {
+            return l2Demotions.sum();
+        }
+
+        /**
+         * @return the total time the l2 cache was promoted, not counting a promotion still in progress
+         */
+        public long getL2PromotedMillis() {
+            return l2PromotedMillis.sum();
+        }
+
+        public boolean isL2Promoted() {
+            return l2Promoted;
+        }
+
+        public int getL1Size() {
+            return l1Size;
+        }
+
+        public int getL2Size() {
+            return l2Size;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.List;
+
+/**
+ * A selector strategy that can consistently map a key to a node, used by
+ * {@link DiscoClient#getServiceNode(String)} and {@link DiscoClient#acquire(String)}.
+ */
+public interface KeyedSelectorStrategy extends SelectorStrategy {
+    /**
+     * @param children the nodes to choose from
+     * @param key      the key that should keep mapping to the same node while the membership allows
+     */
+    ChildData choose(List<ChildData> children, String key);
+}
@@ -0,0 +1,35 @@
+package com.librato.disco;
+
+/**
+ * Makes {@link DiscoClient} decode payloads on first access rather than when
+ * a node is discovered, for services with expensive payloads that most
+ * callers never read. The decoded payload is kept by the node.
+ * <p>
+ * Read the payload of nodes decoded lazily through {@link Node#getPayload()},
+ * as their {@link Node#payload} field is null.
+ * @param <T> type of object excepted from decoding bytes
+ */
+public class LazyDecoder<T> implements Decoder<T> {
+    private final Decoder<T> delegate;
+
+    /**
+     * @param delegate decodes the payloads, may be a {@link ByteBufferDecoder}
+     */
+    public LazyDecoder(Decoder<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    public Decoder<T> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        return delegate.decode(bytes);
+    }
+
+    @Override
+    public void handleException(Exception ex) {
+        delegate.handleException(ex);
+    }
+}
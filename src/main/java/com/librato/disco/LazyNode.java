@@ -0,0 +1,36 @@
+package com.librato.disco;
+
+import java.util.function.Function;
+
+/**
+ * A node that decodes its payload on first access, from the bytes held by
+ * the {@link org.apache.curator.framework.recipes.cache.ChildData} it was
+ * built from.
+ */
+final class LazyNode<T> extends Node<T> {
+    private final Function<byte[], T> decoder;
+    // released once decoded
+    private byte[] data;
+    private volatile boolean decoded;
+    private T decodedPayload;
+
+    LazyNode(String host, int port, byte[] data, Function<byte[], T> decoder) {
+        super(host, port, null);
+        this.data = data;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public T getPayload() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    decodedPayload = decoder.apply(data);
+                    data = null;
+                    decoded = true;
+                }
+            }
+        }
+        return decodedPayload;
+    }
+}
@@ -0,0 +1,76 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples two distinct nodes at random and selects the one whose payload,
+ * through {@link Loaded}, reports the lower {@link ServerLoad#score()}
+ * ("power of two choices"). Nodes see their own overload first, so this
+ * reacts to saturation no client has observed yet. Loads are read when the
+ * payloads change, so each pick is O(1) and does not allocate. Nodes that
+ * do not report a load are scored as the average of those that do.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class LeastLoadedSelectorStrategy implements SelectorStrategy {
+    private volatile Scores scores = new Scores(Collections.<ChildData>emptyList(), new double[0]);
+
+    @Override
+    public void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        double[] byIndex = new double[children.size()];
+        boolean[] unknown = new boolean[byIndex.length];
+        double total = 0;
+        int known = 0;
+        for (int i = 0; i < byIndex.length; i++) {
+            ServerLoad load = Loaded.loadOf(nodes.get(i));
+            if (load == null) {
+                unknown[i] = true;
+            } else {
+                byIndex[i] = load.score();
+                total += byIndex[i];
+                known++;
+            }
+        }
+        double average = known > 0 ? total / known : 0;
+        for (int i = 0; i < byIndex.length; i++) {
+            if (unknown[i]) {
+                byIndex[i] = average;
+            }
+        }
+        scores = new Scores(children, byIndex);
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        final int size = children.size();
+        if (size == 1) {
+            return children.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        Scores current = scores;
+        if (current.children != children) {
+            // not the membership we were updated with, loads are unknown
+            return children.get(a);
+        }
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        return current.byIndex[b] < current.byIndex[a] ? children.get(b) : children.get(a);
+    }
+
+    private static final class Scores {
+        final List<ChildData> children;
+        final double[] byIndex;
+
+        Scores(List<ChildData> children, double[] byIndex) {
+            this.children = children;
+            this.byIndex = byIndex;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples two distinct nodes at random and selects the one with fewer
+ * outstanding requests ("power of two choices"). Outstanding requests are
+ * counted through the leases returned by {@link DiscoClient#acquire()};
+ * counters are dropped as soon as their node leaves the membership.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class LeastOutstandingSelectorStrategy extends TwoChoiceSelectorStrategy<AtomicInteger> {
+    @Override
+    AtomicInteger newState() {
+        return new AtomicInteger();
+    }
+
+    @Override
+    double load(AtomicInteger outstanding) {
+        return outstanding == null ? 0 : outstanding.get();
+    }
+
+    @Override
+    public void requestStarted(ChildData child) {
+        AtomicInteger counter = state(child);
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void requestFinished(ChildData child) {
+        AtomicInteger counter = state(child);
+        if (counter != null) {
+            // the node may have left and rejoined while the request was outstanding
+            int current;
+            do {
+                current = counter.get();
+            } while (current > 0 && !counter.compareAndSet(current, current - 1));
+        }
+    }
+
+    int outstanding(ChildData child) {
+        return (int) load(state(child));
+    }
+}
@@ -1,6 +1,5 @@
 package com.librato.disco;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,22 +20,29 @@ import java.util.concurrent.atomic.AtomicReference;
  * cache returns.  Once the strategy determines it is time to demote the l2
  * cache, operation will return to normal, the nodes will be unfrozen, and
  * the delegate data will be returned to the caller.
+ * <p>
+ * All of this bookkeeping happens when the delegate reports a change and on
+ * a periodic sweep, so {@link #getCurrentData()} only returns a precomputed list.
  */
 public class Level2StateCache implements IStateCache {
     private static final Logger log = LoggerFactory.getLogger(Level2StateCache.class);
+    // how often ttls are refreshed and expired entries pruned between membership events
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
     private final String serviceName;
     private final IStateCache delegate;
     private final ILevel2CacheStrategy strat;
+    private final DiscoMetrics metrics;
     private final AtomicBoolean promoted = new AtomicBoolean();
     private final AtomicReference<Long> promotedAt = new AtomicReference<>();
     // path -> cached data
     private final ConcurrentMap<String, CachedChildData> cache = new ConcurrentHashMap<>();
     private final AtomicReference<List<ChildData>> promotedData = new AtomicReference<>();
     private final IExpireStrategy expireStrategy;
-    private final ScheduledExecutorService monitorExecutor = Executors.newSingleThreadScheduledExecutor(
-            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("l2-state-cache-%d").build());
     private volatile ScheduledFuture<?> monitorFuture;
+    private volatile ScheduledFuture<?> sweepFuture;
+    private volatile List<ChildData> current = Collections.emptyList();
     private final StarterStopper starterStopper = new StarterStopper();
+    private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Constructor.
@@ -45,42 +51,98 @@ public class Level2StateCache implements IStateCache {
      * @param strat    determines when to promote demote
      */
     public Level2StateCache(String serviceName, IStateCache delegate, ILevel2CacheStrategy strat) {
-        this(serviceName, delegate, strat, new DefaultExpireStrategy());
+        this(serviceName, delegate, strat, DiscoMetrics.NOOP);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the cache that will populate the l2 cache
+     * @param strat    determines when to promote demote
+     * @param metrics  receives cache sizes and promotions
+     */
+    public Level2StateCache(String serviceName, IStateCache delegate, ILevel2CacheStrategy strat, DiscoMetrics metrics) {
+        this(serviceName, delegate, strat, new DefaultExpireStrategy(), metrics);
     }
 
     Level2StateCache(String serviceName, IStateCache delegate, ILevel2CacheStrategy strat, IExpireStrategy expireStrategy) {
+        this(serviceName, delegate, strat, expireStrategy, DiscoMetrics.NOOP);
+    }
+
+    Level2StateCache(String serviceName, IStateCache delegate, ILevel2CacheStrategy strat, IExpireStrategy expireStrategy, DiscoMetrics metrics) {
         this.serviceName = serviceName;
         this.delegate = delegate;
         this.strat = strat;
         this.expireStrategy = expireStrategy;
+        this.metrics = metrics;
+        delegate.addListener(new IStateCacheListener() {
+            @Override
+            public void childrenChanged() {
+                if (strat == null) {
+                    metrics.cacheSizes(serviceName, delegate.getCurrentData().size(), 0);
+                    notifyListeners();
+                } else {
+                    refresh();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void addListener(IStateCacheListener listener) {
+        listeners.add(listener);
     }
 
     @Override
     public List<ChildData> getCurrentData() {
-        List<ChildData> data = delegate.getCurrentData();
         if (strat == null) {
             // cache is disbled if strat is null
-            return data;
+            return delegate.getCurrentData();
         }
+        return current;
+    }
 
+    /**
+     * Recomputes the data served by {@link #getCurrentData()}. This runs when
+     * the delegate reports a change and periodically on the service's event
+     * thread so that ttls and promotion are evaluated off the read path.
+     */
+    synchronized void refresh() {
+        if (strat == null) {
+            return;
+        }
+        List<ChildData> data = delegate.getCurrentData();
         updateCache(data);
         prune();
 
         // signal to the strat that we have delegate data
         boolean shouldPromote = strat.promote(serviceName, data.size(), cache.size(), promoted.get());
+        metrics.cacheSizes(serviceName, data.size(), cache.size());
 
         List<ChildData> promotedData = getPromotedData(shouldPromote);
+        List<ChildData> next;
         if (promotedData != null && !promotedData.isEmpty()) {
-            return promotedData;
+            next = promotedData;
+        } else {
+            // by default serve the delegate data
+            next = Collections.unmodifiableList(new ArrayList<>(data));
+        }
+        List<ChildData> previous = current;
+        current = next;
+        if (!next.equals(previous)) {
+            notifyListeners();
         }
+    }
 
-        // by default return the delegate data
-        return data;
+    private void notifyListeners() {
+        for (IStateCacheListener listener : listeners) {
+            listener.childrenChanged();
+        }
     }
 
     /**
-     * A synchronized method which sets the l2 state to a promoted or demoted
-     * state based on what the strategy dictated.
+     * Sets the l2 state to a promoted or demoted state based on what the
+     * strategy dictated. Must be called while holding the refresh lock.
      * <p>
      * If the strategy recommends promotion then it will attempt to set the
      * state of the cache to promoted and will set a reference to the
@@ -92,7 +154,7 @@ public class Level2StateCache implements IStateCache {
      *
      * @param shouldPromote whether or not the strat recommended promotion
      */
-    private synchronized List<ChildData> getPromotedData(boolean shouldPromote) {
+    private List<ChildData> getPromotedData(boolean shouldPromote) {
         if (shouldPromote) {
             if (this.promoted.compareAndSet(false, true)) {
                 List<ChildData> newPromotion = new ArrayList<>();
@@ -103,13 +165,17 @@ public class Level2StateCache implements IStateCache {
                 log.error("Promoting L2 cache for {} using {} promoted child data nodes", serviceName, newPromotion.size());
                 promotedData.set(newPromotion);
                 promotedAt.set(System.currentTimeMillis());
+                metrics.l2Promoted(serviceName);
             }
             return promotedData.get();
         } else {
             if (this.promoted.compareAndSet(true, false)) {
                 log.info("Demoting L2 cache for {}", serviceName);
                 promotedData.set(null);
-                promotedAt.set(null);
+                Long promotedAtMillis = promotedAt.getAndSet(null);
+                if (promotedAtMillis != null) {
+                    metrics.l2Demoted(serviceName, System.currentTimeMillis() - promotedAtMillis);
+                }
             }
         }
         return null;
@@ -119,9 +185,9 @@ public class Level2StateCache implements IStateCache {
      * Updates the cache with the specified data.
      */
     private void updateCache(List<ChildData> data) {
+        long stratTtl = strat.getTtlTimeUnit().toMillis(strat.getTtl());
+        long expireAtMillis = System.currentTimeMillis() + stratTtl;
         for (ChildData childData : data) {
-            long stratTtl = strat.getTtlTimeUnit().toMillis(strat.getTtl());
-            long expireAtMillis = System.currentTimeMillis() + stratTtl;
             CachedChildData cachedData = cache.get(childData.getPath());
             if (cachedData == null) {
                 cachedData = new CachedChildData(childData, expireAtMillis);
@@ -151,8 +217,29 @@ public class Level2StateCache implements IStateCache {
     @Override
     public void start() throws Exception {
         starterStopper.start();
-        delegate.start();
-        monitorFuture = monitorExecutor.scheduleWithFixedDelay(new Runnable() {
+        try {
+            delegate.start();
+        } catch (Exception e) {
+            starterStopper.stop();
+            throw e;
+        }
+        if (strat != null) {
+            refresh();
+            // the scheduler only times the sweep, which notifies listeners and runs on the service's event thread
+            sweepFuture = SharedExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    SharedExecutors.eventExecutor(serviceName).execute(() -> {
+                        try {
+                            refresh();
+                        } catch (Exception e) {
+                            log.error("Error refreshing L2 cache for {}", serviceName, e);
+                        }
+                    });
+                }
+            }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        monitorFuture = SharedExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 Long promotedAtMillis = promotedAt.get();
@@ -174,5 +261,8 @@ public class Level2StateCache implements IStateCache {
         if (monitorFuture != null) {
             monitorFuture.cancel(false);
         }
+        if (sweepFuture != null) {
+            sweepFuture.cancel(false);
+        }
     }
 }
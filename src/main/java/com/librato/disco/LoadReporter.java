@@ -0,0 +1,95 @@
+package com.librato.disco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Periodically publishes the load of a registered node through
+ * {@link DiscoService#updatePayload(byte[])}, for clients using
+ * {@link LeastLoadedSelectorStrategy}. The load combines the process's cpu
+ * usage with the queue depth and concurrency the service reports. Payloads
+ * that did not change are not written again.
+ */
+public class LoadReporter {
+    private static final Logger log = LoggerFactory.getLogger(LoadReporter.class);
+    private final DiscoService service;
+    private final IntSupplier queueDepth;
+    private final IntSupplier concurrency;
+    private final Function<ServerLoad, byte[]> encoder;
+    private final long intervalMillis;
+    private final StarterStopper starterStopper = new StarterStopper();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private byte[] lastPayload;
+    private ScheduledFuture<?> reportFuture;
+
+    /**
+     * @param service     the started service whose payload to update
+     * @param queueDepth  reports the number of requests waiting to be handled
+     * @param concurrency reports the number of requests being handled
+     * @param encoder     encodes the load into the node's payload, which the
+     *                    clients' decoder turns into a {@link Loaded}
+     * @param interval    how often to measure the load
+     */
+    public LoadReporter(DiscoService service, IntSupplier queueDepth, IntSupplier concurrency,
+                        Function<ServerLoad, byte[]> encoder, long interval, TimeUnit unit) {
+        this.service = service;
+        this.queueDepth = queueDepth;
+        this.concurrency = concurrency;
+        this.encoder = encoder;
+        this.intervalMillis = Math.max(unit.toMillis(interval), 1);
+    }
+
+    public void start() {
+        starterStopper.start();
+        reportFuture = SharedExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report();
+                } catch (Exception e) {
+                    log.error("Error reporting load", e);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        starterStopper.stop();
+        if (reportFuture != null) {
+            reportFuture.cancel(false);
+        }
+    }
+
+    private void report() {
+        byte[] payload = encoder.apply(measure());
+        if (!Arrays.equals(payload, lastPayload)) {
+            lastPayload = payload;
+            service.updatePayload(payload);
+        }
+    }
+
+    ServerLoad measure() {
+        return new ServerLoad(cpu(), queueDepth.getAsInt(), concurrency.getAsInt());
+    }
+
+    private double cpu() {
+        double cpu = -1;
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        if (cpu < 0) {
+            // not available on this jvm, fall back to the system's load average
+            double average = os.getSystemLoadAverage();
+            cpu = average < 0 ? 0 : average / os.getAvailableProcessors();
+        }
+        return Math.min(cpu, 1);
+    }
+}
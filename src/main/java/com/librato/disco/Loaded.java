@@ -0,0 +1,21 @@
+package com.librato.disco;
+
+/**
+ * Payload convention for nodes that publish their load. Have the
+ * {@link Decoder} return a payload implementing this interface to use
+ * {@link LeastLoadedSelectorStrategy}, and publish it with a {@link LoadReporter}.
+ */
+public interface Loaded {
+    /**
+     * @return the load the node last published, or null if unknown
+     */
+    ServerLoad getLoad();
+
+    /**
+     * @return the load published in the node's payload, null if it does not publish one
+     */
+    static ServerLoad loadOf(Node<?> node) {
+        Object payload = node.getPayload();
+        return payload instanceof Loaded ? ((Loaded) payload).getLoad() : null;
+    }
+}
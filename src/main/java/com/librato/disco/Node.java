@@ -1,5 +1,8 @@
 package com.librato.disco;
 
+import com.google.common.net.InetAddresses;
+
+import java.net.InetSocketAddress;
 import java.util.Objects;
 
 /**
@@ -8,30 +11,65 @@ import java.util.Objects;
 public class Node<T> {
     public final String host;
     public final int port;
+    /**
+     * The decoded payload, null for nodes built with a {@link LazyDecoder},
+     * prefer {@link #getPayload()}
+     */
     public final T payload;
+    private final HostAndPort hostAndPort;
+    // ip literals are resolved from the start, hostnames once AddressResolver looked them up
+    private volatile InetSocketAddress address;
 
     public Node(String host, int port, T payload) {
         this.host = host;
         this.port = port;
         this.payload = payload;
+        this.hostAndPort = new HostAndPort(host, port);
+        this.address = InetAddresses.isInetAddress(host)
+                ? new InetSocketAddress(InetAddresses.forString(host), port)
+                : InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * @return the decoded payload, decoding it first for nodes built with a {@link LazyDecoder}
+     */
+    public T getPayload() {
+        return payload;
     }
 
     public HostAndPort getHostAndPort() {
-        return new HostAndPort(host, port);
+        return hostAndPort;
+    }
+
+    /**
+     * Never blocks on DNS: nodes discovered by a {@link DiscoClient} have
+     * their hostname resolved in the background, and re-resolved periodically.
+     * @return the node's address, unresolved until its hostname was first resolved
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void setAddress(InetSocketAddress address) {
+        this.address = address;
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof Node)) return false;
         Node<?> node = (Node<?>) o;
         return Objects.equals(port, node.port) &&
                 Objects.equals(host, node.host) &&
-                Objects.equals(payload, node.payload);
+                Objects.equals(getPayload(), node.getPayload());
     }
 
+    /**
+     * Leaves out the payload, so hashing a node built with a {@link LazyDecoder}
+     * does not decode it
+     */
     @Override
     public int hashCode() {
-        return Objects.hash(host, port, payload);
+        return hostAndPort.hashCode();
     }
 }
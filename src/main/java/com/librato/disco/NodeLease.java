@@ -0,0 +1,64 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A node handed out by {@link DiscoClient#acquire()} for the duration of a
+ * single request. Close the lease once the request finishes, or call
+ * {@link #fail()} if it failed, so that feedback driven selector strategies
+ * and outlier detection can account for it. The time between acquiring and
+ * closing is reported as the request's latency.
+ */
+public class NodeLease<T> implements AutoCloseable {
+    private final DiscoClient<T> client;
+    private final ChildData child;
+    private final Node<T> node;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NodeLease(DiscoClient<T> client, ChildData child, Node<T> node) {
+        this.client = client;
+        this.child = child;
+        this.node = node;
+        client.requestStarted(child);
+    }
+
+    public Node<T> getNode() {
+        return node;
+    }
+
+    /**
+     * Marks the request as finished successfully. Closing more than once, or
+     * after {@link #fail()}, has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            client.recordLatency(child, System.nanoTime() - startNanos);
+            client.reportSuccess(child);
+            client.requestFinished(child);
+        }
+    }
+
+    /**
+     * Marks the request as failed. Has no effect if the lease is already closed.
+     */
+    public void fail() {
+        if (closed.compareAndSet(false, true)) {
+            client.reportFailure(child);
+            client.requestFinished(child);
+        }
+    }
+
+    /**
+     * Marks the request as abandoned, such as a hedged request that lost, so
+     * it counts neither as a success nor as a failure.
+     */
+    void release() {
+        if (closed.compareAndSet(false, true)) {
+            client.requestFinished(child);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.librato.disco;
+
+/**
+ * A selected node along with its resource, see {@link NodeResources}
+ */
+public class NodeResource<T, R> {
+    private final Node<T> node;
+    private final R resource;
+
+    NodeResource(Node<T> node, R resource) {
+        this.node = node;
+        this.resource = resource;
+    }
+
+    public Node<T> getNode() {
+        return node;
+    }
+
+    public R getResource() {
+        return resource;
+    }
+}
@@ -0,0 +1,22 @@
+package com.librato.disco;
+
+/**
+ * Creates and closes a resource per node, such as a connection pool or a
+ * channel, for use with {@link NodeResources}
+ * @param <T> type of the nodes' payload
+ * @param <R> type of the resource
+ */
+public interface NodeResourceManager<T, R> {
+    /**
+     * Creates the resource for a node that joined the service. Called in the
+     * background, so it may connect or otherwise block.
+     * @return the resource, or null to not use the node
+     */
+    R create(Node<T> node) throws Exception;
+
+    /**
+     * Closes the resource of a node that left the service, or of every node
+     * once the {@link NodeResources} is stopped
+     */
+    void close(Node<T> node, R resource) throws Exception;
+}
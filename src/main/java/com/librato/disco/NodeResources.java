@@ -0,0 +1,213 @@
+package com.librato.disco;
+
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a resource, such as a connection pool, for every node of a service.
+ * Resources are created in the background as soon as their node joins, so
+ * that requests find them ready, and closed when the node leaves.
+ * <p>
+ * Resources are keyed by host and port: a node whose payload is updated
+ * keeps its resource. Creating a resource that failed is retried with
+ * backoff, and its node is not selected until it was created.
+ * @param <T> type of the nodes' payload
+ * @param <R> type of the resource
+ */
+public class NodeResources<T, R> implements TopologyListener<T> {
+    private static final Logger log = LoggerFactory.getLogger(NodeResources.class);
+    // selections of nodes whose resource is not ready yet are retried this often, before scanning for a ready node
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private final DiscoClient<T> client;
+    private final NodeResourceManager<T, R> manager;
+    private final ConcurrentMap<HostAndPort, Holder> resources = new ConcurrentHashMap<>();
+    private final StarterStopper starterStopper = new StarterStopper();
+
+    public NodeResources(DiscoClient<T> client, NodeResourceManager<T, R> manager) {
+        this.client = client;
+        this.manager = manager;
+    }
+
+    /**
+     * Starts creating the resources of the client's current nodes, and of every node that joins
+     */
+    public void start() {
+        starterStopper.start();
+        client.addListener(this);
+    }
+
+    /**
+     * Stops tracking the client's nodes, and closes every resource
+     */
+    public void stop() {
+        starterStopper.stop();
+        client.removeListener(this);
+        List<Holder> holders;
+        // under the lock of topologyChanged, so a change in flight either sees the stop or is swept here
+        synchronized (this) {
+            holders = new ArrayList<>(resources.values());
+            resources.clear();
+        }
+        for (Holder holder : holders) {
+            holder.close();
+        }
+    }
+
+    /**
+     * Selects a node with the client's selector, skipping nodes whose resource
+     * is not ready. Falls back to any selectable node whose resource is ready
+     * when the selector keeps choosing nodes that are not.
+     * @return the node and its resource, or absent if none was ready
+     */
+    public Optional<NodeResource<T, R>> getServiceNode() {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Optional<Node<T>> node = client.getServiceNode();
+            if (!node.isPresent()) {
+                return Optional.absent();
+            }
+            R resource = get(node.get());
+            if (resource != null) {
+                return Optional.of(new NodeResource<>(node.get(), resource));
+            }
+        }
+        // start at a random node so the fallback does not always land on the same one
+        List<Node<T>> nodes = client.getSelectableNodes();
+        int size = nodes.size();
+        int start = size > 0 ? ThreadLocalRandom.current().nextInt(size) : 0;
+        for (int i = 0; i < size; i++) {
+            Node<T> node = nodes.get((start + i) % size);
+            R resource = get(node);
+            if (resource != null) {
+                return Optional.of(new NodeResource<>(node, resource));
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * @return the resource of a node selected by other means, such as
+     * {@link DiscoClient#acquire()}, or null if it is not ready
+     */
+    public R get(Node<T> node) {
+        Holder holder = resources.get(node.getHostAndPort());
+        return holder != null ? holder.resource : null;
+    }
+
+    @Override
+    public void topologyChanged(TopologyChange<T> change) {
+        List<Holder> removed = new ArrayList<>();
+        synchronized (this) {
+            if (!starterStopper.isStarted()) {
+                return;
+            }
+            for (Node<T> node : change.getRemoved()) {
+                Holder holder = resources.remove(node.getHostAndPort());
+                if (holder != null) {
+                    removed.add(holder);
+                }
+            }
+            for (Node<T> node : change.getAdded()) {
+                Holder holder = new Holder(node);
+                if (resources.putIfAbsent(node.getHostAndPort(), holder) == null) {
+                    holder.createInBackground();
+                }
+            }
+        }
+        for (Holder holder : removed) {
+            holder.close();
+        }
+    }
+
+    private final class Holder {
+        final Node<T> node;
+        volatile R resource;
+        // guarded by this
+        boolean closed;
+        ScheduledFuture<?> pendingRetry;
+        // only touched by the one create attempt in progress
+        long retryMillis;
+
+        Holder(Node<T> node) {
+            this.node = node;
+        }
+
+        void createInBackground() {
+            SharedExecutors.resourceExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    create();
+                }
+            });
+        }
+
+        void create() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            R created;
+            try {
+                created = manager.create(node);
+            } catch (Exception e) {
+                retryMillis = Math.min(Math.max(retryMillis * 2, MIN_RETRY_MILLIS), MAX_RETRY_MILLIS);
+                log.error("Error creating resource for {}, retrying in {}ms", node.getHostAndPort(), retryMillis, e);
+                synchronized (this) {
+                    if (!closed) {
+                        // the scheduler only times the retry, creating runs on the resource executor
+                        pendingRetry = SharedExecutors.scheduler().schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                createInBackground();
+                            }
+                        }, retryMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                if (!closed) {
+                    resource = created;
+                    return;
+                }
+            }
+            // the node left while its resource was being created
+            close(created);
+        }
+
+        void close() {
+            R current;
+            synchronized (this) {
+                closed = true;
+                if (pendingRetry != null) {
+                    pendingRetry.cancel(false);
+                }
+                current = resource;
+                resource = null;
+            }
+            close(current);
+        }
+
+        private void close(R current) {
+            if (current == null) {
+                return;
+            }
+            try {
+                manager.close(node, current);
+            } catch (Exception e) {
+                log.error("Error closing resource for {}", node.getHostAndPort(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of a service's nodes at a given topology version. A new
+ * snapshot is built by {@link DiscoClient} each time the state cache reports
+ * a change, so reads only need a volatile read of the current snapshot.
+ * <p>
+ * Selection uses {@link #selectable}, the children not currently ejected by
+ * outlier detection, while the rest of the snapshot covers every member.
+ */
+final class NodeSnapshot<T> {
+    final long version;
+    final List<ChildData> children;
+    final Node<T>[] nodes;
+    final List<Node<T>> nodeList;
+    // the children selectors choose from, which excludes ejected nodes
+    final List<ChildData> selectable;
+    final List<Node<T>> selectableNodes;
+    // the number of distinct zones among the selectable nodes, nodes without one count as a zone,
+    // counted on first use so lazily decoded payloads are not decoded for every snapshot
+    private int selectableZones = -1;
+    // keyed by identity as selectors hand back elements of children and
+    // callers hand back the nodes this snapshot gave them
+    private final Map<ChildData, Node<T>> nodesByChild;
+    private final Map<Node<T>, ChildData> childrenByNode;
+    // lets the next snapshot reuse the nodes of unchanged children
+    private final Map<String, Integer> indexesByPath;
+    // finds the child of a node handed out by an earlier snapshot
+    private final Map<HostAndPort, Integer> indexesByHostAndPort;
+
+    NodeSnapshot(long version, List<ChildData> children, Node<T>[] nodes) {
+        this(version, children, nodes, children);
+    }
+
+    NodeSnapshot(long version, List<ChildData> children, Node<T>[] nodes, List<ChildData> selectable) {
+        this.version = version;
+        this.children = Collections.unmodifiableList(children);
+        this.nodes = nodes;
+        this.nodeList = Collections.unmodifiableList(Arrays.asList(nodes));
+        this.nodesByChild = new IdentityHashMap<>(nodes.length);
+        this.childrenByNode = new IdentityHashMap<>(nodes.length);
+        this.indexesByPath = new HashMap<>(nodes.length * 2);
+        this.indexesByHostAndPort = new HashMap<>(nodes.length * 2);
+        for (int i = 0; i < nodes.length; i++) {
+            nodesByChild.put(children.get(i), nodes[i]);
+            childrenByNode.put(nodes[i], children.get(i));
+            indexesByPath.put(children.get(i).getPath(), i);
+            indexesByHostAndPort.put(nodes[i].getHostAndPort(), i);
+        }
+        if (selectable == children) {
+            this.selectable = this.children;
+            this.selectableNodes = this.nodeList;
+        } else {
+            List<Node<T>> selectableNodes = new ArrayList<>(selectable.size());
+            for (ChildData child : selectable) {
+                selectableNodes.add(nodesByChild.get(child));
+            }
+            this.selectable = Collections.unmodifiableList(selectable);
+            this.selectableNodes = Collections.unmodifiableList(selectableNodes);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> NodeSnapshot<T> empty() {
+        return new NodeSnapshot<>(0, Collections.<ChildData>emptyList(), (Node<T>[]) new Node[0]);
+    }
+
+    int selectableZones() {
+        int count = selectableZones;
+        if (count < 0) {
+            Set<String> zones = new HashSet<>();
+            for (Node<T> node : selectableNodes) {
+                zones.add(Zoned.zoneOf(node));
+            }
+            count = zones.size();
+            selectableZones = count;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return nodes.length == 0;
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return the node built for the given child, or null if the child is not part of this snapshot
+     */
+    Node<T> nodeFor(ChildData child) {
+        return nodesByChild.get(child);
+    }
+
+    /**
+     * @return the index of the child with the given path, or -1 if there is none
+     */
+    int indexOf(String path) {
+        Integer index = indexesByPath.get(path);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return the child the given node was built from, or null if the node is not part of this snapshot.
+     * Nodes handed out by an earlier snapshot are found by host and port, as their payload may have
+     * been updated since.
+     */
+    ChildData childFor(Node<T> node) {
+        ChildData child = childrenByNode.get(node);
+        if (child == null) {
+            Integer index = indexesByHostAndPort.get(node.getHostAndPort());
+            if (index != null) {
+                child = children.get(index);
+            }
+        }
+        return child;
+    }
+}
@@ -0,0 +1,250 @@
+package com.librato.disco;
+
+import com.google.common.base.Preconditions;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passively ejects nodes that fail requests from a {@link DiscoClient}'s
+ * selection set. A node is ejected after a number of consecutive failures,
+ * or when its failure rate over the last interval crosses a threshold. It
+ * stays ejected for the base ejection time, doubled for every ejection it
+ * has had recently, after which it is selectable again.
+ * <p>
+ * At most the given percentage of nodes is ejected at a time. If fewer than
+ * the panic threshold of nodes remain selectable anyway, for example as
+ * nodes left while others were ejected, the client ignores ejections and
+ * routes to all nodes.
+ * <p>
+ * Keeps per-node state, so use one instance per {@link DiscoClient}.
+ */
+public class OutlierDetector {
+    private static final Logger log = LoggerFactory.getLogger(OutlierDetector.class);
+    // ejection times stop doubling after this many recent ejections
+    private static final int MAX_EJECTION_MULTIPLIER = 1 << 5;
+    private final int consecutiveFailures;
+    private final double failureRate;
+    private final int minimumRequests;
+    private final long baseEjectionNanos;
+    private final int maxEjectionPercent;
+    private final double panicThreshold;
+    // path -> state
+    private final ConcurrentMap<String, NodeHealth> health = new ConcurrentHashMap<>();
+    private final StarterStopper starterStopper = new StarterStopper();
+    private volatile Runnable listener;
+    private volatile ScheduledFuture<?> intervalFuture;
+    private volatile int members;
+
+    /**
+     * Ejects after 5 consecutive failures or a 50% failure rate over at least 20
+     * requests in a 30 second interval, for 30 seconds at first, at most half of
+     * the nodes, and panics below half of the nodes
+     */
+    public OutlierDetector() {
+        this(5, 0.5, 20, 30, TimeUnit.SECONDS, 50, 0.5);
+    }
+
+    /**
+     * @param consecutiveFailures eject after this many failures in a row, 0 to disable
+     * @param failureRate         eject when this fraction of a node's requests in an interval fail, 0 to disable
+     * @param minimumRequests     requests a node needs in an interval before its failure rate counts
+     * @param baseEjectionTime    how long the first ejection of a node lasts, also the interval length
+     * @param baseEjectionUnit    unit of baseEjectionTime
+     * @param maxEjectionPercent  maximum percentage of nodes ejected at a time
+     * @param panicThreshold      route to all nodes when less than this fraction of nodes is selectable
+     */
+    public OutlierDetector(int consecutiveFailures,
+                           double failureRate,
+                           int minimumRequests,
+                           long baseEjectionTime,
+                           TimeUnit baseEjectionUnit,
+                           int maxEjectionPercent,
+                           double panicThreshold) {
+        Preconditions.checkArgument(maxEjectionPercent >= 0 && maxEjectionPercent <= 100);
+        Preconditions.checkArgument(panicThreshold >= 0 && panicThreshold <= 1, "panicThreshold must be in [0, 1]");
+        this.consecutiveFailures = consecutiveFailures;
+        this.failureRate = failureRate;
+        this.minimumRequests = minimumRequests;
+        this.baseEjectionNanos = baseEjectionUnit.toNanos(baseEjectionTime);
+        this.maxEjectionPercent = maxEjectionPercent;
+        this.panicThreshold = panicThreshold;
+    }
+
+    /**
+     * Sets the callback run whenever the set of ejected nodes changes
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    void start() {
+        starterStopper.start();
+        long intervalMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(baseEjectionNanos), 1);
+        intervalFuture = SharedExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    endInterval();
+                } catch (Exception e) {
+                    log.error("Error ending outlier detection interval", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        starterStopper.stop();
+        if (intervalFuture != null) {
+            intervalFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Tracks the current membership, forgetting nodes that left
+     */
+    void update(List<ChildData> children) {
+        Set<String> paths = new HashSet<>();
+        for (ChildData child : children) {
+            paths.add(child.getPath());
+            if (!health.containsKey(child.getPath())) {
+                health.putIfAbsent(child.getPath(), new NodeHealth());
+            }
+        }
+        health.keySet().retainAll(paths);
+        members = paths.size();
+    }
+
+    /**
+     * @return whether the given child is currently ejected
+     */
+    boolean isEjected(ChildData child) {
+        NodeHealth node = health.get(child.getPath());
+        return node != null && node.ejected;
+    }
+
+    /**
+     * @return whether clients should ignore ejections given how many nodes remain selectable
+     */
+    boolean isPanicking(int selectable, int total) {
+        return selectable < panicThreshold * total;
+    }
+
+    void success(ChildData child) {
+        NodeHealth node = health.get(child.getPath());
+        if (node != null) {
+            node.consecutiveFailures.set(0);
+            node.successes.incrementAndGet();
+        }
+    }
+
+    void failure(ChildData child) {
+        NodeHealth node = health.get(child.getPath());
+        if (node == null) {
+            return;
+        }
+        int failures = node.failures.incrementAndGet();
+        int consecutive = node.consecutiveFailures.incrementAndGet();
+        int requests = failures + node.successes.get();
+        if ((consecutiveFailures > 0 && consecutive >= consecutiveFailures)
+                || (failureRate > 0 && requests >= minimumRequests && failures >= failureRate * requests)) {
+            eject(child.getPath(), node);
+        }
+    }
+
+    private void eject(final String path, final NodeHealth node) {
+        synchronized (this) {
+            if (node.ejected || health.get(path) != node) {
+                return;
+            }
+            int ejected = 0;
+            for (NodeHealth other : health.values()) {
+                if (other.ejected) {
+                    ejected++;
+                }
+            }
+            // always allow a single ejection unless ejection is disabled altogether
+            int maxEjected = Math.max(members * maxEjectionPercent / 100, maxEjectionPercent > 0 && members > 1 ? 1 : 0);
+            if (ejected >= maxEjected) {
+                return;
+            }
+            node.multiplier = Math.min(node.multiplier * 2, MAX_EJECTION_MULTIPLIER);
+            long ejectionNanos = baseEjectionNanos * (node.multiplier / 2);
+            node.ejected = true;
+            log.warn("Ejecting {} for {}ms", path, TimeUnit.NANOSECONDS.toMillis(ejectionNanos));
+            SharedExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    unEject(path, node);
+                }
+            }, ejectionNanos, TimeUnit.NANOSECONDS);
+        }
+        notifyListener();
+    }
+
+    private void unEject(String path, NodeHealth node) {
+        synchronized (this) {
+            if (!node.ejected) {
+                return;
+            }
+            log.info("Returning {} from ejection", path);
+            node.ejected = false;
+            node.consecutiveFailures.set(0);
+            node.failures.set(0);
+            node.successes.set(0);
+        }
+        notifyListener();
+    }
+
+    /**
+     * Starts a new failure rate interval and lets nodes that stayed healthy
+     * for the whole interval work their ejection time back down
+     */
+    void endInterval() {
+        synchronized (this) {
+            for (NodeHealth node : health.values()) {
+                if (!node.ejected && node.multiplier > 1 && node.failures.get() == 0) {
+                    node.multiplier /= 2;
+                }
+                node.failures.set(0);
+                node.successes.set(0);
+            }
+        }
+    }
+
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    int ejectionCount() {
+        int ejected = 0;
+        for (Map.Entry<String, NodeHealth> entry : health.entrySet()) {
+            if (entry.getValue().ejected) {
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    private static final class NodeHealth {
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger successes = new AtomicInteger();
+        // guarded by the detector
+        int multiplier = 1;
+        volatile boolean ejected;
+    }
+}
@@ -7,49 +7,94 @@ import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.CloseableExecutorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 
 public class PathChildrenStateCache implements IStateCache {
     private static final Logger log = LoggerFactory.getLogger(PathChildrenStateCache.class);
-    private final PathChildrenCache cache;
+    private final Supplier<PathChildrenCache> cacheSupplier;
     private final CuratorFramework framework;
     private final String serviceName;
     private final String serviceNode;
     private final StarterStopper starterStopper = new StarterStopper();
+    private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
+    // a new cache is built on every start, as a cache that failed to start cannot be started again
+    private volatile PathChildrenCache cache;
 
     public PathChildrenStateCache(CuratorFramework framework, String serviceName, String serviceNode) {
+        this(framework, serviceName, serviceNode, () -> new PathChildrenCache(framework, serviceNode, true));
+    }
+
+    /**
+     * @param eventExecutor processes the cache's Zookeeper events, it is not shut down when the cache stops
+     */
+    public PathChildrenStateCache(CuratorFramework framework, String serviceName, String serviceNode, ExecutorService eventExecutor) {
+        this(framework, serviceName, serviceNode,
+                () -> new PathChildrenCache(framework, serviceNode, true, false, new CloseableExecutorService(eventExecutor, false)));
+    }
+
+    private PathChildrenStateCache(CuratorFramework framework, String serviceName, String serviceNode, Supplier<PathChildrenCache> cacheSupplier) {
         this.framework = framework;
         this.serviceName = serviceName;
         this.serviceNode = serviceNode;
-        cache = new PathChildrenCache(framework, serviceNode, true);
+        this.cacheSupplier = cacheSupplier;
     }
 
     @Override
     public List<ChildData> getCurrentData() {
-        return cache.getCurrentData();
+        PathChildrenCache current = cache;
+        return current == null ? Collections.<ChildData>emptyList() : current.getCurrentData();
+    }
+
+    @Override
+    public void addListener(IStateCacheListener listener) {
+        listeners.add(listener);
     }
 
     @Override
     public void start() throws Exception {
         starterStopper.start();
+        try {
+            startCache();
+        } catch (Exception e) {
+            // allow starting again, for example once Zookeeper can be reached
+            PathChildrenCache failed = cache;
+            cache = null;
+            if (failed != null) {
+                failed.close();
+            }
+            starterStopper.stop();
+            throw e;
+        }
+    }
+
+    private void startCache() throws Exception {
         Preconditions.checkArgument(framework.getState() == CuratorFrameworkState.STARTED);
         if (framework.checkExists().forPath(serviceNode) == null) {
             framework.create().creatingParentsIfNeeded().forPath(serviceNode);
         }
+        PathChildrenCache cache = cacheSupplier.get();
+        this.cache = cache;
         cache.getListenable().addListener(new PathChildrenCacheListener() {
             public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
                 switch (event.getType()) {
                     case CHILD_ADDED:
                         log.info("`{}` service node added: {}", serviceName, event.getData().getPath());
+                        notifyListeners();
                         break;
                     case CHILD_UPDATED:
+                        notifyListeners();
                         break;
                     case CHILD_REMOVED:
                         log.info("`{}` service node removed: {}", serviceName, event.getData().getPath());
+                        notifyListeners();
                         break;
                     case CONNECTION_SUSPENDED:
                         break;
@@ -65,9 +110,20 @@ public class PathChildrenStateCache implements IStateCache {
         cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
     }
 
+    private void notifyListeners() {
+        for (IStateCacheListener listener : listeners) {
+            try {
+                listener.childrenChanged();
+            } catch (Exception e) {
+                log.error("Error notifying listener for `{}`", serviceName, e);
+            }
+        }
+    }
+
     @Override
     public void stop() throws Exception {
         starterStopper.stop();
         cache.close();
+        cache = null;
     }
 }
@@ -0,0 +1,110 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples two distinct nodes at random and selects the one with the lower
+ * peak EWMA load: an exponentially weighted moving average of observed
+ * latency, which jumps straight to any latency above it, multiplied by the
+ * node's outstanding requests. The average decays towards zero over the
+ * configured decay time when a node is not observed.
+ * <p>
+ * Latencies are learned from {@link NodeLease}s and from
+ * {@link DiscoClient#recordLatency(Node, long)}; failures count as a request
+ * that took the failure penalty.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class PeakEwmaSelectorStrategy extends TwoChoiceSelectorStrategy<PeakEwmaSelectorStrategy.PeakEwma> {
+    // load of a node with requests outstanding but no latency observed yet
+    private static final double PENALTY = Long.MAX_VALUE >> 16;
+    private final double decayNanos;
+    private final long failurePenaltyNanos;
+
+    /**
+     * Decays over 10 seconds and counts failures as 1 second requests
+     */
+    public PeakEwmaSelectorStrategy() {
+        this(10, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+    }
+
+    public PeakEwmaSelectorStrategy(long decayTime, TimeUnit decayTimeUnit,
+                                    long failurePenalty, TimeUnit failurePenaltyUnit) {
+        this.decayNanos = decayTimeUnit.toNanos(decayTime);
+        this.failurePenaltyNanos = failurePenaltyUnit.toNanos(failurePenalty);
+    }
+
+    @Override
+    PeakEwma newState() {
+        return new PeakEwma();
+    }
+
+    @Override
+    double load(PeakEwma ewma) {
+        return ewma == null ? 0 : ewma.load(System.nanoTime());
+    }
+
+    @Override
+    public void requestStarted(ChildData child) {
+        PeakEwma ewma = state(child);
+        if (ewma != null) {
+            ewma.pending.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void requestFinished(ChildData child) {
+        PeakEwma ewma = state(child);
+        if (ewma != null) {
+            int current;
+            do {
+                current = ewma.pending.get();
+            } while (current > 0 && !ewma.pending.compareAndSet(current, current - 1));
+        }
+    }
+
+    @Override
+    public void recordLatency(ChildData child, long nanos) {
+        PeakEwma ewma = state(child);
+        if (ewma != null) {
+            ewma.observe(System.nanoTime(), nanos);
+        }
+    }
+
+    @Override
+    public void recordFailure(ChildData child) {
+        recordLatency(child, failurePenaltyNanos);
+    }
+
+    double load(ChildData child) {
+        return load(state(child));
+    }
+
+    final class PeakEwma {
+        final AtomicInteger pending = new AtomicInteger();
+        private long stamp = System.nanoTime();
+        private double cost;
+
+        synchronized void observe(long now, double rtt) {
+            double w = weight(now);
+            cost = rtt > cost ? rtt : cost * w + rtt * (1 - w);
+            stamp = now;
+        }
+
+        synchronized double load(long now) {
+            double current = cost * weight(now);
+            int outstanding = pending.get();
+            if (current == 0 && outstanding != 0) {
+                return PENALTY + outstanding;
+            }
+            return current * (outstanding + 1);
+        }
+
+        private double weight(long now) {
+            return Math.exp(-Math.max(now - stamp, 0) / decayNanos);
+        }
+    }
+}
@@ -10,4 +10,27 @@ import java.util.List;
  */
 public interface SelectorStrategy {
     ChildData choose(List<ChildData> children);
+
+    /**
+     * Called by {@link DiscoClient} with the new set of children each time
+     * its membership changes, before that same list is passed to
+     * {@link #choose(List)}. Strategies that precompute state over the
+     * membership override this; such strategies hold per-client state and
+     * should not be shared between clients.
+     *
+     * @param children the children that subsequent calls to choose will receive
+     */
+    default void update(List<ChildData> children) {
+    }
+
+    /**
+     * Like {@link #update(List)}, but also receives the decoded node for each
+     * child at the same index, for strategies that select on the payload.
+     *
+     * @param children the children that subsequent calls to choose will receive
+     * @param nodes    the node decoded from each child
+     */
+    default void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        update(children);
+    }
 }
@@ -0,0 +1,49 @@
+package com.librato.disco;
+
+/**
+ * A node's own view of how loaded it is, published by {@link LoadReporter}
+ * and read by {@link LeastLoadedSelectorStrategy} through {@link Loaded}
+ */
+public class ServerLoad {
+    // below this share of idle cpu, every node looks equally saturated
+    private static final double MIN_IDLE = 0.05;
+    private final double cpu;
+    private final int queueDepth;
+    private final int concurrency;
+
+    /**
+     * @param cpu         the share of cpu in use, between 0 and 1
+     * @param queueDepth  the number of requests waiting to be handled
+     * @param concurrency the number of requests being handled
+     */
+    public ServerLoad(double cpu, int queueDepth, int concurrency) {
+        this.cpu = cpu;
+        this.queueDepth = queueDepth;
+        this.concurrency = concurrency;
+    }
+
+    public double getCpu() {
+        return cpu;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the requests queued and in flight, scaled up as the cpu runs out, lower is better
+     */
+    public double score() {
+        double idle = Math.max(1 - Math.min(Math.max(cpu, 0), 1), MIN_IDLE);
+        return (queueDepth + concurrency + 1) / idle;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerLoad{cpu=" + cpu + ", queueDepth=" + queueDepth + ", concurrency=" + concurrency + "}";
+    }
+}
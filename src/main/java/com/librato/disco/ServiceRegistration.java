@@ -0,0 +1,40 @@
+package com.librato.disco;
+
+/**
+ * One service name, node name and port to register through
+ * {@link DiscoService#start(java.util.List, boolean)}
+ */
+public class ServiceRegistration {
+    private final String serviceName;
+    private final String nodeName;
+    private final int port;
+    private final byte[] payload;
+
+    public ServiceRegistration(String serviceName, String nodeName, int port, byte[] payload) {
+        this.serviceName = serviceName;
+        this.nodeName = nodeName;
+        this.port = port;
+        this.payload = payload;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return serviceName + "/" + nodeName + ":" + port;
+    }
+}
@@ -0,0 +1,227 @@
+package com.librato.disco;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every service under <code>/services</code> with a single
+ * {@link TreeCache}, and hands out a per service {@link IStateCache} view of
+ * it. Compared to a {@link PathChildrenStateCache} per service, a process
+ * discovering many services reads them all in one pass when starting and
+ * after reconnecting, and handles their events on a single thread, instead
+ * of checking, creating and listing every service path separately. It does
+ * watch and cache every service, including the ones the process does not
+ * use, so it holds somewhat more watches.
+ * <p>
+ * The tree cache starts when the first view starts and closes when the last
+ * view stops.
+ */
+public class ServicesTreeCache {
+    private static final Logger log = LoggerFactory.getLogger(ServicesTreeCache.class);
+    private static final String servicesPath = "/services";
+    // /services/<service>/nodes/<node>
+    private static final int maxDepth = 3;
+    // how long starting waits for the initial tree to be read
+    private static final long INITIAL_BUILD_TIMEOUT_SECONDS = 10;
+    private final CuratorFramework framework;
+    // service name -> started views
+    private final ConcurrentMap<String, List<View>> views = new ConcurrentHashMap<>();
+    private TreeCache cache;
+    private volatile CountDownLatch initialized;
+    private volatile boolean dispatching;
+    private int started;
+
+    public ServicesTreeCache(CuratorFramework framework) {
+        this.framework = framework;
+    }
+
+    /**
+     * @return the nodes of the given service, as seen by this tree cache
+     */
+    public IStateCache viewFor(String serviceName) {
+        return new View(serviceName);
+    }
+
+    private synchronized TreeCache acquire() throws Exception {
+        if (started++ == 0) {
+            Preconditions.checkArgument(framework.getState() == CuratorFrameworkState.STARTED);
+            initialized = new CountDownLatch(1);
+            dispatching = false;
+            cache = TreeCache.newBuilder(framework, servicesPath)
+                    .setCacheData(true)
+                    .setMaxDepth(maxDepth)
+                    .setExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-services-tree-%d").build())
+                    .build();
+            cache.getListenable().addListener(new TreeCacheListener() {
+                @Override
+                public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+                    handle(event);
+                }
+            });
+            try {
+                cache.start();
+            } catch (Exception e) {
+                started--;
+                cache.close();
+                cache = null;
+                throw e;
+            }
+            if (!initialized.await(INITIAL_BUILD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Services tree not read after {}s, starting with the nodes read so far", INITIAL_BUILD_TIMEOUT_SECONDS);
+            }
+        }
+        return cache;
+    }
+
+    private synchronized void release() {
+        if (--started == 0) {
+            cache.close();
+            cache = null;
+        }
+    }
+
+    private void handle(TreeCacheEvent event) {
+        switch (event.getType()) {
+            case INITIALIZED:
+                // views read the whole tree when they start, so the events
+                // of the initial read are not dispatched one by one
+                dispatching = true;
+                initialized.countDown();
+                notifyAllViews();
+                break;
+            case NODE_ADDED:
+            case NODE_UPDATED:
+            case NODE_REMOVED:
+                if (dispatching) {
+                    String serviceName = serviceOf(event.getData().getPath());
+                    if (serviceName != null) {
+                        notifyViews(serviceName);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the service a node under /services/&lt;service&gt;/nodes belongs to, or null for other paths
+     */
+    static String serviceOf(String path) {
+        if (!path.startsWith(servicesPath + "/")) {
+            return null;
+        }
+        int start = servicesPath.length() + 1;
+        int end = path.indexOf('/', start);
+        if (end < 0 || !path.startsWith("/nodes/", end)) {
+            return null;
+        }
+        return path.substring(start, end);
+    }
+
+    private void notifyViews(String serviceName) {
+        List<View> serviceViews = views.get(serviceName);
+        if (serviceViews != null) {
+            for (View view : serviceViews) {
+                view.notifyListeners();
+            }
+        }
+    }
+
+    private void notifyAllViews() {
+        for (List<View> serviceViews : views.values()) {
+            for (View view : serviceViews) {
+                view.notifyListeners();
+            }
+        }
+    }
+
+    private final class View implements IStateCache {
+        private final String serviceName;
+        private final String nodesPath;
+        private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
+        private final StarterStopper starterStopper = new StarterStopper();
+        private volatile TreeCache tree;
+
+        View(String serviceName) {
+            this.serviceName = serviceName;
+            this.nodesPath = DiscoClient.nodesPath(serviceName);
+        }
+
+        @Override
+        public List<ChildData> getCurrentData() {
+            TreeCache current = tree;
+            Map<String, ChildData> children = current == null ? null : current.getCurrentChildren(nodesPath);
+            if (children == null || children.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<ChildData> data = new ArrayList<>(children.size());
+            for (ChildData child : children.values()) {
+                // skip nodes whose data was not read yet
+                if (child != null) {
+                    data.add(child);
+                }
+            }
+            // sorted by path, like PathChildrenCache
+            Collections.sort(data);
+            return data;
+        }
+
+        @Override
+        public void addListener(IStateCacheListener listener) {
+            listeners.add(listener);
+        }
+
+        void notifyListeners() {
+            for (IStateCacheListener listener : listeners) {
+                try {
+                    listener.childrenChanged();
+                } catch (Exception e) {
+                    log.error("Error notifying listener for `{}`", serviceName, e);
+                }
+            }
+        }
+
+        @Override
+        public void start() throws Exception {
+            starterStopper.start();
+            views.computeIfAbsent(serviceName, name -> new CopyOnWriteArrayList<View>()).add(this);
+            try {
+                tree = acquire();
+            } catch (Exception e) {
+                views.get(serviceName).remove(this);
+                starterStopper.stop();
+                throw e;
+            }
+        }
+
+        @Override
+        public void stop() throws Exception {
+            starterStopper.stop();
+            List<View> serviceViews = views.get(serviceName);
+            if (serviceViews != null) {
+                serviceViews.remove(this);
+            }
+            tree = null;
+            release();
+        }
+    }
+}
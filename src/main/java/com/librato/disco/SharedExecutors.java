@@ -0,0 +1,116 @@
+package com.librato.disco;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon threads shared by every client in the process, so the number of
+ * threads stays bounded no matter how many services are discovered.
+ * <p>
+ * The scheduler runs l2 cache sweeps, outlier detection intervals, hedge
+ * delays and timeouts, all of which are short. Zookeeper events are handled
+ * on a fixed set of single threaded executors, and a service always maps to
+ * the same one so its events are processed in order. Payloads of large
+ * membership changes are decoded in parallel on a small pool, which falls
+ * back to decoding on the calling thread when it is saturated. Hostnames
+ * are resolved, and node resources created, on their own threads, as both
+ * can block for seconds.
+ */
+final class SharedExecutors {
+    private static final int SCHEDULER_THREADS = 2;
+    private static final int EVENT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final ScheduledExecutorService scheduler;
+    private static final ExecutorService[] eventExecutors = new ExecutorService[EVENT_THREADS];
+    static final int DECODE_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService decodeExecutor;
+    private static final int RESOLVE_THREADS = 2;
+    private static final ExecutorService resolveExecutor;
+    private static final int RESOURCE_THREADS = 4;
+    private static final ExecutorService resourceExecutor;
+    private static final int SNAPSHOT_THREADS = 2;
+    private static final ExecutorService snapshotExecutor;
+
+    static {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-scheduler-%d").build());
+        // most tasks are cancelled timeouts, do not keep them around until they were due
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        for (int i = 0; i < EVENT_THREADS; i++) {
+            eventExecutors[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-events-" + i).build());
+        }
+        ThreadPoolExecutor decoder = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(DECODE_THREADS * 4),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-decode-%d").build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        decoder.allowCoreThreadTimeOut(true);
+        decodeExecutor = decoder;
+        ThreadPoolExecutor resolver = new ThreadPoolExecutor(RESOLVE_THREADS, RESOLVE_THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-resolve-%d").build());
+        resolver.allowCoreThreadTimeOut(true);
+        resolveExecutor = resolver;
+        ThreadPoolExecutor resources = new ThreadPoolExecutor(RESOURCE_THREADS, RESOURCE_THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-resources-%d").build());
+        resources.allowCoreThreadTimeOut(true);
+        resourceExecutor = resources;
+        ThreadPoolExecutor snapshots = new ThreadPoolExecutor(SNAPSHOT_THREADS, SNAPSHOT_THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("disco-snapshots-%d").build());
+        snapshots.allowCoreThreadTimeOut(true);
+        snapshotExecutor = snapshots;
+    }
+
+    private SharedExecutors() {
+    }
+
+    static ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the executor that handles the Zookeeper events of the given service
+     */
+    static ExecutorService eventExecutor(String serviceName) {
+        return eventExecutors[(serviceName.hashCode() & Integer.MAX_VALUE) % EVENT_THREADS];
+    }
+
+    /**
+     * @return the executor that decodes payloads, which never queues more than a few tasks
+     */
+    static ExecutorService decodeExecutor() {
+        return decodeExecutor;
+    }
+
+    /**
+     * @return the executor that resolves hostnames, which may block on DNS
+     */
+    static ExecutorService resolveExecutor() {
+        return resolveExecutor;
+    }
+
+    /**
+     * @return the executor that creates the resources of {@link NodeResources}, which may connect
+     */
+    static ExecutorService resourceExecutor() {
+        return resourceExecutor;
+    }
+
+    /**
+     * @return the executor that starts the state caches behind {@link SnapshotFileStateCache}
+     * and writes its files, both of which block
+     */
+    static ExecutorService snapshotExecutor() {
+        return snapshotExecutor;
+    }
+}
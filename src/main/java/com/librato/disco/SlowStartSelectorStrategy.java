@@ -0,0 +1,165 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Ramps up the traffic of nodes that just joined, as freshly started
+ * processes are cold and still compiling. Over the window following its
+ * creation time, a node's weight grows linearly or exponentially from a
+ * small fraction to the weight its payload advertises through
+ * {@link Weighted}, or 1.
+ * <p>
+ * The weights are computed when the membership changes, and recomputed on
+ * a shared timer every twentieth of the window while some node is still
+ * ramping up, so each pick is an O(1) lookup in an alias table that does
+ * not allocate.
+ * Ramping only shifts traffic between nodes: when every node just
+ * started, they all receive their share.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class SlowStartSelectorStrategy implements SelectorStrategy {
+    public enum Ramp {
+        /**
+         * The weight grows in proportion to the node's age
+         */
+        LINEAR,
+        /**
+         * The weight doubles at regular intervals, staying low for longer
+         */
+        EXPONENTIAL
+    }
+
+    // the share of its weight a node gets as it joins
+    static final double MIN_FACTOR = 0.01;
+    private static final int STEPS = 20;
+    private final long windowMillis;
+    private final Ramp ramp;
+    private final LongSupplier clock;
+    private volatile Table table = new Table(Collections.<ChildData>emptyList(), new double[0], new long[0], 0);
+    // a client updates the selector before publishing the membership, so requests
+    // still choosing from the previous membership keep picking from its table
+    private volatile Table previousTable = table;
+    // guarded by this
+    private ScheduledFuture<?> pendingRefresh;
+
+    /**
+     * Ramps up linearly
+     * @param window how long after joining a node receives its full share
+     */
+    public SlowStartSelectorStrategy(long window, TimeUnit unit) {
+        this(window, unit, Ramp.LINEAR);
+    }
+
+    /**
+     * @param window how long after joining a node receives its full share
+     * @param ramp   how the share grows over the window
+     */
+    public SlowStartSelectorStrategy(long window, TimeUnit unit, Ramp ramp) {
+        this(unit.toMillis(window), ramp, System::currentTimeMillis);
+    }
+
+    SlowStartSelectorStrategy(long windowMillis, Ramp ramp, LongSupplier clock) {
+        this.windowMillis = Math.max(windowMillis, 1);
+        this.ramp = ramp;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        double[] weights = new double[children.size()];
+        long[] ctimes = new long[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Weighted.weightOf(nodes.get(i));
+            Stat stat = children.get(i).getStat();
+            // without a creation time, treat the node as warm
+            ctimes[i] = stat != null ? stat.getCtime() : 0;
+        }
+        previousTable = table;
+        publish(new Table(children, weights, ctimes, clock.getAsLong()));
+    }
+
+    /**
+     * Recomputes the ramped weights of the current membership. Called on the
+     * shared scheduler while some node is still ramping up.
+     */
+    synchronized void refresh() {
+        Table current = table;
+        publish(new Table(current.children, current.weights, current.ctimes, clock.getAsLong()));
+    }
+
+    // guarded by this
+    private void publish(Table next) {
+        table = next;
+        if (pendingRefresh != null) {
+            pendingRefresh.cancel(false);
+            pendingRefresh = null;
+        }
+        if (next.ramping) {
+            pendingRefresh = SharedExecutors.scheduler().schedule(this::refresh,
+                    Math.max(windowMillis / STEPS, 1), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        Table current = table;
+        if (current.children != children) {
+            current = previousTable;
+            if (current.children != children) {
+                // not a membership we were updated with, ages are unknown
+                return children.get(ThreadLocalRandom.current().nextInt(children.size()));
+            }
+        }
+        return children.get(current.alias.next());
+    }
+
+    /**
+     * @return the share of its weight a node of the given age receives
+     */
+    double factor(long ageMillis) {
+        if (ageMillis >= windowMillis) {
+            return 1;
+        }
+        double progress = Math.max(ageMillis, 0) / (double) windowMillis;
+        switch (ramp) {
+            case EXPONENTIAL:
+                return MIN_FACTOR * Math.pow(1 / MIN_FACTOR, progress);
+            case LINEAR:
+            default:
+                return MIN_FACTOR + (1 - MIN_FACTOR) * progress;
+        }
+    }
+
+    private final class Table {
+        final List<ChildData> children;
+        final double[] weights;
+        final long[] ctimes;
+        final AliasTable alias;
+        // whether some node is still ramping up, so the weights need recomputing
+        final boolean ramping;
+
+        Table(List<ChildData> children, double[] weights, long[] ctimes, long now) {
+            this.children = children;
+            this.weights = weights;
+            this.ctimes = ctimes;
+            double[] ramped = new double[weights.length];
+            boolean ramping = false;
+            for (int i = 0; i < ramped.length; i++) {
+                double factor = factor(now - ctimes[i]);
+                ramping |= factor < 1;
+                ramped[i] = weights[i] * factor;
+            }
+            this.alias = new AliasTable(ramped);
+            this.ramping = ramping;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selects nodes in round-robin fashion in proportion to the weight their
+ * payload advertises through {@link Weighted}, interleaving the picks of each
+ * node evenly over the cycle rather than sending a node its whole share in a
+ * burst. The schedule for one cycle is computed when the membership changes,
+ * so each pick is O(1) and does not allocate.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class SmoothWeightedRoundRobinSelectorStrategy implements SelectorStrategy {
+    // weights are scaled down to keep the precomputed cycle at most this long
+    private static final int MAX_CYCLE = 1 << 16;
+    private final AtomicLong idx = new AtomicLong(0);
+    private volatile Schedule schedule = new Schedule(Collections.<ChildData>emptyList(), new int[0]);
+
+    @Override
+    public void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        final int size = children.size();
+        long[] weights = new long[size];
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            weights[i] = Weighted.weightOf(nodes.get(i));
+            total += weights[i];
+        }
+        if (total == 0) {
+            Arrays.fill(weights, 1);
+            total = size;
+        }
+        if (total > Math.max(MAX_CYCLE, size)) {
+            long scaledTotal = 0;
+            for (int i = 0; i < size; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = Math.max(1, Math.round((double) weights[i] * MAX_CYCLE / total));
+                    scaledTotal += weights[i];
+                }
+            }
+            total = scaledTotal;
+        }
+
+        // node i's k-th turn is due at (k + 0.5) / weight of the cycle; ordering
+        // every turn by that time spreads each node's turns evenly
+        final double[] due = new double[(int) total];
+        final int[] owners = new int[due.length];
+        int turn = 0;
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < weights[i]; k++) {
+                due[turn] = (k + 0.5) / weights[i];
+                owners[turn++] = i;
+            }
+        }
+        Integer[] order = new Integer[due.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> due[a] != due[b] ? Double.compare(due[a], due[b]) : Integer.compare(owners[a], owners[b]));
+        int[] cycle = new int[order.length];
+        for (int i = 0; i < cycle.length; i++) {
+            cycle[i] = owners[order[i]];
+        }
+        schedule = new Schedule(children, cycle);
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        Schedule current = schedule;
+        long next = idx.getAndIncrement();
+        if (current.children != children) {
+            // not the membership we were updated with, weights are unknown
+            return children.get((int) (next % children.size()));
+        }
+        return children.get(current.cycle[(int) (next % current.cycle.length)]);
+    }
+
+    private static final class Schedule {
+        final List<ChildData> children;
+        // index into children for every turn of one cycle
+        final int[] cycle;
+
+        Schedule(List<ChildData> children, int[] cycle) {
+            this.children = children;
+            this.cycle = cycle;
+        }
+    }
+}
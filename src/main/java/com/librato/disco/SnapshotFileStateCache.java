@@ -0,0 +1,305 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A state cache that persists the membership of a service to a local file,
+ * so that a restarting process can serve nodes before, or without, reaching
+ * Zookeeper.
+ * <p>
+ * When a snapshot file exists on start, its nodes are served right away and
+ * the delegate is started in the background, retrying with backoff if
+ * Zookeeper cannot be reached. Once the delegate started its data is served
+ * instead. Without a snapshot file the delegate is started synchronously, as
+ * there is nothing to serve yet. The file is rewritten shortly after every
+ * change of the delegate's data.
+ * <p>
+ * The file holds the path, ctime, mzxid and data of every node, and ends
+ * with a CRC32 checksum. Files that are corrupt or of another format are
+ * ignored.
+ */
+public class SnapshotFileStateCache implements IStateCache {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotFileStateCache.class);
+    private static final int MAGIC = 0x4449534b;
+    private static final byte FORMAT_VERSION = 1;
+    // changes are written at most this often
+    private static final long WRITE_DELAY_MILLIS = 1000;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private final String serviceName;
+    private final IStateCache delegate;
+    private final Path file;
+    private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
+    private final StarterStopper starterStopper = new StarterStopper();
+    // a write may still run on the snapshot executor when the next one is due
+    private final Object writeLock = new Object();
+    private volatile List<ChildData> persisted = Collections.emptyList();
+    // whether the delegate started and its data is served
+    private volatile boolean live;
+    private volatile boolean stopped;
+    private ScheduledFuture<?> pendingStart;
+    private ScheduledFuture<?> pendingWrite;
+
+    /**
+     * @param directory where to keep the snapshot file, named after the service
+     */
+    public SnapshotFileStateCache(String serviceName, IStateCache delegate, File directory) {
+        this.serviceName = serviceName;
+        this.delegate = delegate;
+        this.file = directory.toPath().resolve(serviceName + ".snapshot");
+        delegate.addListener(new IStateCacheListener() {
+            @Override
+            public void childrenChanged() {
+                if (live) {
+                    scheduleWrite();
+                    notifyListeners();
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<ChildData> getCurrentData() {
+        return live ? delegate.getCurrentData() : persisted;
+    }
+
+    @Override
+    public void addListener(IStateCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return whether the data served comes from the delegate rather than the snapshot file
+     */
+    boolean isLive() {
+        return live;
+    }
+
+    @Override
+    public void start() throws Exception {
+        starterStopper.start();
+        stopped = false;
+        List<ChildData> loaded = read();
+        if (loaded == null) {
+            delegate.start();
+            delegateStarted();
+            return;
+        }
+        log.info("Serving {} nodes of `{}` from {} until Zookeeper is read", loaded.size(), serviceName, file);
+        persisted = loaded;
+        startInBackground(0);
+    }
+
+    private synchronized void startInBackground(final long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        // the scheduler only times the attempt, starting blocks and runs on the snapshot executor
+        pendingStart = SharedExecutors.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                SharedExecutors.snapshotExecutor().execute(() -> tryStart(delayMillis));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tryStart(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        try {
+            delegate.start();
+        } catch (Exception e) {
+            long next = Math.min(Math.max(delayMillis * 2, MIN_RETRY_MILLIS), MAX_RETRY_MILLIS);
+            log.error("Error starting `{}`, serving {} nodes from {}, retrying in {}ms",
+                    serviceName, persisted.size(), file, next, e);
+            startInBackground(next);
+            return;
+        }
+        delegateStarted();
+    }
+
+    private void delegateStarted() {
+        if (!goLive()) {
+            stopDelegate();
+            return;
+        }
+        scheduleWrite();
+        notifyListeners();
+    }
+
+    /**
+     * Switches to the delegate under the same lock stop() takes, so that a
+     * concurrent stop() either sees the delegate live and stops it, or is
+     * seen here
+     * @return false if the cache was stopped meanwhile
+     */
+    private synchronized boolean goLive() {
+        if (stopped) {
+            return false;
+        }
+        live = true;
+        persisted = Collections.emptyList();
+        return true;
+    }
+
+    private synchronized void scheduleWrite() {
+        if (pendingWrite == null || pendingWrite.isDone()) {
+            pendingWrite = SharedExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    SharedExecutors.snapshotExecutor().execute(() -> {
+                        if (live) {
+                            write(delegate.getCurrentData());
+                        }
+                    });
+                }
+            }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifyListeners() {
+        for (IStateCacheListener listener : listeners) {
+            listener.childrenChanged();
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        starterStopper.stop();
+        boolean wasLive;
+        synchronized (this) {
+            stopped = true;
+            wasLive = live;
+            if (pendingStart != null) {
+                pendingStart.cancel(false);
+            }
+            if (pendingWrite != null && pendingWrite.cancel(false) && wasLive) {
+                // keep the latest membership for the next start
+                write(delegate.getCurrentData());
+            }
+        }
+        live = false;
+        if (wasLive) {
+            stopDelegate();
+        }
+    }
+
+    private void stopDelegate() {
+        try {
+            delegate.stop();
+        } catch (Exception e) {
+            log.error("Error stopping `{}`", serviceName, e);
+        }
+    }
+
+    void write(List<ChildData> children) {
+        synchronized (writeLock) {
+            writeFile(children);
+        }
+    }
+
+    private void writeFile(List<ChildData> children) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(children.size());
+            for (ChildData child : children) {
+                out.writeUTF(child.getPath());
+                Stat stat = child.getStat();
+                out.writeLong(stat == null ? 0 : stat.getCtime());
+                out.writeLong(stat == null ? 0 : stat.getMzxid());
+                byte[] data = child.getData();
+                out.writeInt(data == null ? -1 : data.length);
+                if (data != null) {
+                    out.write(data);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), serviceName, ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.error("Error writing snapshot of `{}` to {}", serviceName, file, e);
+        }
+    }
+
+    /**
+     * @return the persisted nodes, or null if there is no valid snapshot
+     */
+    List<ChildData> read() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < 8) {
+                log.warn("Ignoring truncated snapshot {}", file);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(bytes.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                log.warn("Ignoring snapshot {} with a bad checksum", file);
+                return null;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+                log.warn("Ignoring snapshot {} of an unknown format", file);
+                return null;
+            }
+            int count = in.readInt();
+            List<ChildData> children = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Stat stat = new Stat();
+                stat.setCtime(in.readLong());
+                stat.setMzxid(in.readLong());
+                int length = in.readInt();
+                byte[] data = null;
+                if (length >= 0) {
+                    data = new byte[length];
+                    in.readFully(data);
+                }
+                children.add(new ChildData(path, stat, data));
+            }
+            return Collections.unmodifiableList(children);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable snapshot {}", file, e);
+            return null;
+        }
+    }
+}
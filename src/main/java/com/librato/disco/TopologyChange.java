@@ -0,0 +1,54 @@
+package com.librato.disco;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The difference between two consecutive memberships of a service. The sets
+ * hold the nodes handed out by the client and compare them by identity.
+ */
+public class TopologyChange<T> {
+    private final long version;
+    private final Set<Node<T>> added;
+    private final Set<Node<T>> removed;
+    private final Set<Node<T>> updated;
+
+    TopologyChange(long version, Set<Node<T>> added, Set<Node<T>> removed, Set<Node<T>> updated) {
+        this.version = version;
+        this.added = Collections.unmodifiableSet(added);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.updated = Collections.unmodifiableSet(updated);
+    }
+
+    /**
+     * @return the topology version after this change, which increases with every change
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public Set<Node<T>> getAdded() {
+        return added;
+    }
+
+    public Set<Node<T>> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the new nodes of members whose payload changed
+     */
+    public Set<Node<T>> getUpdated() {
+        return updated;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyChange{version=" + version + ", added=" + added.size() +
+                ", removed=" + removed.size() + ", updated=" + updated.size() + "}";
+    }
+}
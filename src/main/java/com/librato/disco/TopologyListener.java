@@ -0,0 +1,14 @@
+package com.librato.disco;
+
+/**
+ * Listens for changes to the nodes of a service, see
+ * {@link DiscoClient#addListener(TopologyListener)}
+ */
+public interface TopologyListener<T> {
+    /**
+     * Called once for every membership change, in order of topology version.
+     * Called from the thread that rebuilds the client's snapshot, so
+     * implementations should not block.
+     */
+    void topologyChanged(TopologyChange<T> change);
+}
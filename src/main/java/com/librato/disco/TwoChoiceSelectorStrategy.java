@@ -0,0 +1,96 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Base for strategies that keep some state per node and select by sampling
+ * two distinct nodes at random and picking the one with the lower load
+ * ("power of two choices"). State is created when a node joins the
+ * membership and dropped as soon as it leaves.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ *
+ * @param <S> the per-node state
+ */
+abstract class TwoChoiceSelectorStrategy<S> implements FeedbackSelectorStrategy {
+    // path -> node state
+    private final ConcurrentMap<String, S> states = new ConcurrentHashMap<>();
+    private volatile Indexed indexed = new Indexed(Collections.<ChildData>emptyList(), new Object[0]);
+
+    /**
+     * @return fresh state for a node that just joined
+     */
+    abstract S newState();
+
+    /**
+     * @param state the node's state, or null if the node is not part of the membership
+     * @return the node's current load, lower is better
+     */
+    abstract double load(S state);
+
+    @Override
+    public synchronized void update(List<ChildData> children) {
+        Object[] byIndex = new Object[children.size()];
+        Set<String> paths = new HashSet<>();
+        for (int i = 0; i < byIndex.length; i++) {
+            String path = children.get(i).getPath();
+            paths.add(path);
+            S state = states.get(path);
+            if (state == null) {
+                state = newState();
+                states.put(path, state);
+            }
+            byIndex[i] = state;
+        }
+        states.keySet().retainAll(paths);
+        indexed = new Indexed(children, byIndex);
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        final int size = children.size();
+        if (size == 1) {
+            return children.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        Indexed current = indexed;
+        // the precomputed states are only valid for the list they were built from
+        Object[] byIndex = current.children == children ? current.byIndex : null;
+        return load(state(children, byIndex, b)) < load(state(children, byIndex, a)) ? children.get(b) : children.get(a);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S state(List<ChildData> children, Object[] byIndex, int idx) {
+        return byIndex != null ? (S) byIndex[idx] : states.get(children.get(idx).getPath());
+    }
+
+    /**
+     * @return the state of the given child, or null if it is not part of the membership
+     */
+    S state(ChildData child) {
+        return states.get(child.getPath());
+    }
+
+    private static final class Indexed {
+        final List<ChildData> children;
+        final Object[] byIndex;
+
+        Indexed(List<ChildData> children, Object[] byIndex) {
+            this.children = children;
+            this.byIndex = byIndex;
+        }
+    }
+}
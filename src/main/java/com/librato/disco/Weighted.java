@@ -0,0 +1,24 @@
+package com.librato.disco;
+
+/**
+ * Payload convention for nodes that advertise a relative capacity. Have the
+ * {@link Decoder} return a payload implementing this interface to use
+ * {@link WeightedRandomSelectorStrategy} or {@link SmoothWeightedRoundRobinSelectorStrategy}.
+ */
+public interface Weighted {
+    /**
+     * @return the node's weight relative to the other nodes of the service
+     */
+    int getWeight();
+
+    /**
+     * @return the weight advertised by the node's payload, 1 if it does not advertise one
+     */
+    static int weightOf(Node<?> node) {
+        Object payload = node.getPayload();
+        if (payload instanceof Weighted) {
+            return Math.max(((Weighted) payload).getWeight(), 0);
+        }
+        return 1;
+    }
+}
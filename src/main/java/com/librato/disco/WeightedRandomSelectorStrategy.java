@@ -0,0 +1,47 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects a random node with probability proportional to the weight its
+ * payload advertises through {@link Weighted}. The alias table is built when
+ * the membership changes, so each pick is O(1) and does not allocate.
+ * <p>
+ * Keeps per-membership state, so use one instance per {@link DiscoClient}.
+ */
+public class WeightedRandomSelectorStrategy implements SelectorStrategy {
+    private volatile Table table = new Table(Collections.<ChildData>emptyList(), new AliasTable(new double[0]));
+
+    @Override
+    public void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        double[] weights = new double[children.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Weighted.weightOf(nodes.get(i));
+        }
+        table = new Table(children, new AliasTable(weights));
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        Table current = table;
+        if (current.children != children) {
+            // not the membership we were updated with, weights are unknown
+            return children.get(ThreadLocalRandom.current().nextInt(children.size()));
+        }
+        return children.get(current.alias.next());
+    }
+
+    private static final class Table {
+        final List<ChildData> children;
+        final AliasTable alias;
+
+        Table(List<ChildData> children, AliasTable alias) {
+            this.children = children;
+            this.alias = alias;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.librato.disco;
+
+import com.google.common.base.Preconditions;
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefers nodes in the caller's zone, as advertised by payloads implementing
+ * {@link Zoned}, and picks randomly among them. Traffic spills over to all
+ * nodes when the local pool is unhealthy, that is smaller than the given
+ * fraction of the average zone size, and to the other zones when the local
+ * pool is overloaded, that is has more outstanding requests per node than
+ * allowed. An overloaded pool spills the share of its outstanding requests
+ * above what it is allowed, so traffic shifts gradually rather than swinging
+ * between the pools. Outstanding requests are counted per node through
+ * {@link DiscoClient#acquire()}.
+ * <p>
+ * The local and remote pools are computed when the membership changes, so
+ * choosing is a random index into a precomputed array. Keeps per-membership state, so use
+ * one instance per {@link DiscoClient}.
+ */
+public class ZoneAwareSelectorStrategy implements FeedbackSelectorStrategy {
+    private final String localZone;
+    private final double healthyFraction;
+    private final int maxOutstandingPerNode;
+    // path -> outstanding requests, of every node
+    private final ConcurrentMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private volatile Pools pools = new Pools(Collections.<ChildData>emptyList(), new ChildData[0], new ChildData[0],
+            new AtomicInteger[0], false);
+
+    /**
+     * Spills over when the local pool drops below 70% of the average zone size, never for load
+     *
+     * @param localZone the zone of the caller
+     */
+    public ZoneAwareSelectorStrategy(String localZone) {
+        this(localZone, 0.7, 0);
+    }
+
+    /**
+     * @param localZone             the zone of the caller
+     * @param healthyFraction       the local pool is healthy while it holds at least this
+     *                              fraction of the average number of nodes per zone
+     * @param maxOutstandingPerNode spill over while the local pool has more outstanding requests
+     *                              per node than this, or 0 to ignore load
+     */
+    public ZoneAwareSelectorStrategy(String localZone, double healthyFraction, int maxOutstandingPerNode) {
+        Preconditions.checkNotNull(localZone);
+        this.localZone = localZone;
+        this.healthyFraction = healthyFraction;
+        this.maxOutstandingPerNode = maxOutstandingPerNode;
+    }
+
+    @Override
+    public void update(List<ChildData> children, List<? extends Node<?>> nodes) {
+        List<ChildData> local = new ArrayList<>();
+        List<ChildData> remote = new ArrayList<>();
+        Set<String> zones = new HashSet<>();
+        for (int i = 0; i < children.size(); i++) {
+            String zone = Zoned.zoneOf(nodes.get(i));
+            zones.add(zone);
+            if (localZone.equals(zone)) {
+                local.add(children.get(i));
+            } else {
+                remote.add(children.get(i));
+            }
+        }
+        double averageZoneSize = zones.isEmpty() ? 0 : (double) children.size() / zones.size();
+        boolean healthy = !local.isEmpty() && local.size() >= healthyFraction * averageZoneSize;
+        synchronized (this) {
+            Set<String> paths = new HashSet<>();
+            for (ChildData child : children) {
+                paths.add(child.getPath());
+                outstanding.putIfAbsent(child.getPath(), new AtomicInteger());
+            }
+            for (Map.Entry<String, AtomicInteger> entry : outstanding.entrySet()) {
+                if (!paths.contains(entry.getKey())) {
+                    outstanding.remove(entry.getKey());
+                }
+            }
+            AtomicInteger[] localCounters = new AtomicInteger[local.size()];
+            for (int i = 0; i < localCounters.length; i++) {
+                localCounters[i] = outstanding.get(local.get(i).getPath());
+            }
+            pools = new Pools(children, local.toArray(new ChildData[local.size()]),
+                    remote.toArray(new ChildData[remote.size()]), localCounters, healthy);
+        }
+    }
+
+    @Override
+    public ChildData choose(List<ChildData> children) {
+        Pools current = pools;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (current.children == children && current.localHealthy) {
+            if (current.remote.length == 0 || random.nextDouble() >= spill(current)) {
+                return current.local[random.nextInt(current.local.length)];
+            }
+            return current.remote[random.nextInt(current.remote.length)];
+        }
+        return children.get(random.nextInt(children.size()));
+    }
+
+    /**
+     * @return the share of traffic to send to the other zones, that of the local
+     * pool's outstanding requests above what it is allowed. The load is summed
+     * from the local nodes' counters, so it cannot drift from them as nodes join
+     * or leave the local pool while requests are outstanding.
+     */
+    private double spill(Pools current) {
+        if (maxOutstandingPerNode <= 0) {
+            return 0;
+        }
+        int load = 0;
+        for (AtomicInteger counter : current.localCounters) {
+            load += counter.get();
+        }
+        int capacity = maxOutstandingPerNode * current.local.length;
+        return load > capacity ? (double) (load - capacity) / load : 0;
+    }
+
+    @Override
+    public void requestStarted(ChildData child) {
+        AtomicInteger counter = outstanding.get(child.getPath());
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void requestFinished(ChildData child) {
+        AtomicInteger counter = outstanding.get(child.getPath());
+        if (counter != null) {
+            // the node may have left and rejoined while the request was outstanding
+            int current;
+            do {
+                current = counter.get();
+            } while (current > 0 && !counter.compareAndSet(current, current - 1));
+        }
+    }
+
+    boolean isLocalHealthy() {
+        return pools.localHealthy;
+    }
+
+    private static final class Pools {
+        final List<ChildData> children;
+        final ChildData[] local;
+        final ChildData[] remote;
+        // outstanding requests of the local nodes, in the order of local
+        final AtomicInteger[] localCounters;
+        final boolean localHealthy;
+
+        Pools(List<ChildData> children, ChildData[] local, ChildData[] remote, AtomicInteger[] localCounters, boolean localHealthy) {
+            this.children = children;
+            this.local = local;
+            this.remote = remote;
+            this.localCounters = localCounters;
+            this.localHealthy = localHealthy;
+        }
+    }
+}
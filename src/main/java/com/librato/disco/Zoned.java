@@ -0,0 +1,22 @@
+package com.librato.disco;
+
+/**
+ * Payload convention for nodes that advertise where they run. Have the
+ * {@link Decoder} return a payload implementing this interface to use
+ * {@link ZoneAwareSelectorStrategy}, or to spread
+ * {@link DiscoClient#getServiceNodes(int, boolean)} across zones.
+ */
+public interface Zoned {
+    /**
+     * @return the zone, rack or other locality the node runs in, or null if unknown
+     */
+    String getZone();
+
+    /**
+     * @return the zone advertised by the node's payload, null if it does not advertise one
+     */
+    static String zoneOf(Node<?> node) {
+        Object payload = node.getPayload();
+        return payload instanceof Zoned ? ((Zoned) payload).getZone() : null;
+    }
+}
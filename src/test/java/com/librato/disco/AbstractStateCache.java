@@ -1,6 +1,29 @@
 package com.librato.disco;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
 public abstract class AbstractStateCache implements IStateCache {
+    private final List<IStateCacheListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addListener(IStateCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    protected void notifyListeners() {
+        for (IStateCacheListener listener : listeners) {
+            listener.childrenChanged();
+        }
+        // clients rebuild on their service's event thread, wait for it so tests read the change
+        try {
+            SharedExecutors.eventExecutor("myservice").submit(() -> { }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void start() throws Exception {
 
@@ -0,0 +1,132 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.librato.disco.FakeChildData.newData;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashSelectorStrategyTest {
+    @Test
+    public void testSameKeySameNode() throws Exception {
+        List<ChildData> children = children(10);
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy();
+        strategy.update(children);
+        for (int i = 0; i < 100; i++) {
+            String key = "key-" + i;
+            ChildData chosen = strategy.choose(children, key);
+            for (int j = 0; j < 10; j++) {
+                assertSame(chosen, strategy.choose(children, key));
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyKeysOfRemovedNodeMove() throws Exception {
+        List<ChildData> children = children(10);
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy();
+        strategy.update(children);
+        ChildData[] before = new ChildData[1000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = strategy.choose(children, "key-" + i);
+        }
+
+        ChildData removed = children.get(3);
+        List<ChildData> remaining = new ArrayList<>(children);
+        remaining.remove(removed);
+        strategy.update(remaining);
+        for (int i = 0; i < before.length; i++) {
+            ChildData after = strategy.choose(remaining, "key-" + i);
+            if (before[i] != removed) {
+                assertSame(before[i], after);
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalRingMatchesFreshRing() throws Exception {
+        List<ChildData> children = children(20);
+        ConsistentHashSelectorStrategy incremental = new ConsistentHashSelectorStrategy();
+        incremental.update(children.subList(0, 15));
+        List<ChildData> changed = new ArrayList<>(children.subList(5, 20));
+        incremental.update(changed);
+
+        ConsistentHashSelectorStrategy fresh = new ConsistentHashSelectorStrategy();
+        fresh.update(changed);
+        assertArrayEquals(fresh.points(), incremental.points());
+        assertArrayEquals(fresh.owners(), incremental.owners());
+    }
+
+    @Test
+    public void testBoundedLoad() throws Exception {
+        List<ChildData> children = children(4);
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy(160, 1.25);
+        strategy.update(children);
+
+        // a single hot key spills over to other nodes once its node is at capacity
+        ChildData home = strategy.choose(children, "hot");
+        strategy.requestStarted(home);
+        strategy.requestStarted(home);
+        ChildData next = strategy.choose(children, "hot");
+        assertNotSame(home, next);
+
+        strategy.requestFinished(home);
+        strategy.requestFinished(home);
+        assertSame(home, strategy.choose(children, "hot"));
+    }
+
+    @Test
+    public void testChoosesFromPreviousMembershipWhileUpdating() throws Exception {
+        List<ChildData> children = children(4);
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy(160, 1.25);
+        strategy.update(children);
+        ChildData home = strategy.choose(children, "hot");
+        strategy.requestStarted(home);
+        strategy.requestStarted(home);
+
+        // requests still holding the previous membership use its ring, load bound included
+        List<ChildData> next = new ArrayList<>(children);
+        next.add(newData("10.0.0.4:8080"));
+        strategy.update(next);
+        assertNotSame(home, strategy.choose(children, "hot"));
+        assertTrue(children.contains(strategy.choose(children, "hot")));
+    }
+
+    @Test
+    public void testKeysSpread() throws Exception {
+        List<ChildData> children = children(4);
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy();
+        strategy.update(children);
+        int[] counts = new int[children.size()];
+        for (int i = 0; i < 10000; i++) {
+            counts[children.indexOf(strategy.choose(children, "key-" + i))]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 1500);
+        }
+        assertEquals(10000, counts[0] + counts[1] + counts[2] + counts[3]);
+    }
+
+    @Test
+    public void testChooseWithoutUpdate() throws Exception {
+        ConsistentHashSelectorStrategy strategy = new ConsistentHashSelectorStrategy();
+        List<ChildData> children = asList(newData("a:1"), newData("b:1"));
+        assertSame(strategy.choose(children, "key"), strategy.choose(children, "key"));
+    }
+
+    private static List<ChildData> children(int count) {
+        List<ChildData> children = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            children.add(newData("10.0.0." + i + ":8080"));
+        }
+        return children;
+    }
+}
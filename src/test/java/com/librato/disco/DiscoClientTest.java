@@ -4,8 +4,10 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,9 +16,22 @@ import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.util.Collections.singleton;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -169,6 +184,578 @@ public class DiscoClientTest {
         assertTrue(nodes.contains(new Node<>("hello2", 1232, new MyObject(pload))));
     }
 
+    @Test
+    public void testSnapshotRebuiltOnChange() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        assertEquals(0, client.numServiceHosts());
+        assertFalse(client.getServiceNode().isPresent());
+        long version = client.getSnapshotVersion();
+
+        byte[] payload = "snap".getBytes();
+        stateCache.add(new ChildData("/services/myservice/nodes/hello:1231", null, payload));
+        assertTrue(client.getSnapshotVersion() > version);
+        assertEquals(1, client.numServiceHosts());
+        assertSame(client.getAllNodes().get(0), client.getServiceNode().get());
+        assertEquals(new Node<>("hello", 1231, new MyObject(payload)), client.getServiceNode().get());
+
+        // reads are served from the snapshot and never decode again
+        for (int i = 0; i < 100; i++) {
+            client.getServiceNode();
+            client.getAllNodes();
+        }
+        verify(decoder, times(1)).decode(eq(payload));
+
+        stateCache.clear();
+        assertEquals(0, client.numServiceHosts());
+        assertTrue(client.getAllNodes().isEmpty());
+    }
+
+    @Test
+    public void testDecodesLargeChangesInParallelBeforePublishing() throws Exception {
+        final Set<String> decodingThreads = ConcurrentHashMap.newKeySet();
+        final AtomicInteger decoded = new AtomicInteger();
+        Decoder<MyObject> recordingDecoder = new Decoder<MyObject>() {
+            @Override
+            public MyObject decode(byte[] bytes) {
+                decodingThreads.add(Thread.currentThread().getName());
+                decoded.incrementAndGet();
+                return new MyObject(bytes);
+            }
+
+            @Override
+            public void handleException(Exception ex) {
+            }
+        };
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, recordingDecoder, null, stateCache);
+        client.start();
+
+        ChildData[] children = new ChildData[200];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new ChildData("/services/myservice/nodes/host" + i + ":1", null, ("payload" + i).getBytes());
+        }
+        stateCache.add(children);
+        assertEquals(200, decoded.get());
+        boolean decodedInPool = false;
+        for (String thread : decodingThreads) {
+            decodedInPool |= thread.startsWith("disco-decode-");
+        }
+        assertTrue(decodingThreads.toString(), decodedInPool);
+
+        // the published snapshot holds every decoded node, selection never decodes
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(client.getServiceNode().get().payload);
+        }
+        assertEquals(200, decoded.get());
+        client.stop();
+    }
+
+    @Test
+    public void testReusesNodesByPathAndVersion() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+
+        ChildData[] children = new ChildData[1500];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new ChildData("/services/myservice/nodes/host" + i + ":1", stat(1), ("payload" + i).getBytes());
+        }
+        stateCache.add(children);
+        stateCache.add(new ChildData("/services/myservice/nodes/added:1", stat(1), "added".getBytes()));
+        // more nodes than the previous cache held are still decoded once
+        verify(decoder, times(1501)).decode(any(byte[].class));
+
+        Node<MyObject> before = client.getAllNodes().get(0);
+        Node<MyObject> unchanged = client.getAllNodes().get(1);
+        stateCache.update(new ChildData(children[0].getPath(), stat(2), "updated".getBytes()));
+        verify(decoder, times(1502)).decode(any(byte[].class));
+        assertEquals(new MyObject("updated".getBytes()), client.getAllNodes().get(0).payload);
+        assertSame(unchanged, client.getAllNodes().get(1));
+        assertNotSame(before, client.getAllNodes().get(0));
+        client.stop();
+    }
+
+    // ejections rebuild the snapshot on the service's event thread
+    private static void awaitRebuild() throws Exception {
+        SharedExecutors.eventExecutor("myservice").submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        return stat;
+    }
+
+    @Test
+    public void testResolvesHostnamesInBackground() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        stateCache.add(new ChildData("/services/myservice/nodes/localhost:1231", null, null));
+
+        Node<MyObject> node = client.getServiceNode().get();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (node.getAddress().isUnresolved() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(node.getAddress().isUnresolved());
+        assertTrue(node.getAddress().getAddress().isLoopbackAddress());
+        assertEquals(1231, node.getAddress().getPort());
+        client.stop();
+    }
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        ByteBufferDecoder<MyObject> bufferDecoder = new ByteBufferDecoder<MyObject>() {
+            @Override
+            public MyObject decode(ByteBuffer buffer) {
+                buffers.add(buffer);
+                return new MyObject(StandardCharsets.UTF_8.decode(buffer).toString().getBytes());
+            }
+
+            @Override
+            public void handleException(Exception ex) {
+            }
+        };
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, new LazyDecoder<>(bufferDecoder), null, stateCache);
+        client.start();
+
+        byte[] payload = "lazy".getBytes();
+        stateCache.add(new ChildData("/services/myservice/nodes/hello:1231", null, payload));
+        Node<MyObject> node = client.getServiceNode().get();
+        assertEquals("hello", node.host);
+        // listeners and hashing do not decode either
+        final List<TopologyChange<MyObject>> changes = new ArrayList<>();
+        client.addListener(changes::add);
+        stateCache.add(new ChildData("/services/myservice/nodes/other:1231", null, payload));
+        assertEquals(new Node<>("hello", 1231, null).hashCode(), node.hashCode());
+        assertEquals(2, changes.size());
+        assertTrue(buffers.isEmpty());
+
+        assertEquals(new MyObject(payload), node.getPayload());
+        assertEquals(new MyObject(payload), node.getPayload());
+        assertEquals(new Node<>("hello", 1231, new MyObject(payload)), node);
+        assertEquals(1, buffers.size());
+        assertTrue(buffers.get(0).isReadOnly());
+        client.stop();
+    }
+
+    @Test
+    public void testLeaseTracksOutstandingRequests() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        LeastOutstandingSelectorStrategy selector = new LeastOutstandingSelectorStrategy();
+        client = new DiscoClient<>(null, "myservice", selector, decoder, null, stateCache);
+        client.start();
+        assertFalse(client.acquire().isPresent());
+
+        ChildData childA = new ChildData("/services/myservice/nodes/a:1", null, null);
+        ChildData childB = new ChildData("/services/myservice/nodes/b:1", null, null);
+        stateCache.add(childA, childB);
+
+        NodeLease<MyObject> first = client.acquire().get();
+        NodeLease<MyObject> second = client.acquire().get();
+        // the second request goes to the node without an outstanding request
+        assertNotEquals(first.getNode(), second.getNode());
+        first.close();
+        first.close();
+        second.close();
+        assertEquals(0, selector.outstanding(childA));
+        assertEquals(0, selector.outstanding(childB));
+    }
+
+    @Test
+    public void testRecordLatency() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        PeakEwmaSelectorStrategy selector = new PeakEwmaSelectorStrategy();
+        client = new DiscoClient<>(null, "myservice", selector, decoder, null, stateCache);
+        client.start();
+
+        ChildData fast = new ChildData("/services/myservice/nodes/fast:1", null, null);
+        ChildData slow = new ChildData("/services/myservice/nodes/slow:1", null, null);
+        stateCache.add(fast, slow);
+        for (Node<MyObject> node : client.getAllNodes()) {
+            client.recordLatency(node, node.host.equals("fast") ? 1000 : 1000000);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("fast", client.getServiceNode().get().host);
+        }
+
+        NodeLease<MyObject> lease = client.acquire().get();
+        lease.fail();
+        assertEquals(TimeUnit.SECONDS.toNanos(1), selector.load(fast), TimeUnit.MILLISECONDS.toNanos(10));
+
+        // nodes that are not part of the membership are ignored
+        double slowLoad = selector.load(slow);
+        client.reportFailure(new Node<MyObject>("gone", 1, null));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), selector.load(fast), TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(slowLoad, selector.load(slow), TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testGetServiceNodeByKey() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", new ConsistentHashSelectorStrategy(), decoder, null, stateCache);
+        client.start();
+        assertFalse(client.getServiceNode("key").isPresent());
+
+        for (int i = 0; i < 5; i++) {
+            stateCache.add(new ChildData("/services/myservice/nodes/host" + i + ":1", null, null));
+        }
+        Node<MyObject> node = client.getServiceNode("key").get();
+        for (int i = 0; i < 100; i++) {
+            assertSame(node, client.getServiceNode("key").get());
+            try (NodeLease<MyObject> lease = client.acquire("key").get()) {
+                assertSame(node, lease.getNode());
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetServiceNodeByKeyRequiresKeyedSelector() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        stateCache.add(new ChildData("/services/myservice/nodes/host:1", null, null));
+        client.getServiceNode("key");
+    }
+
+    @Test
+    public void testEjectsFailingNodes() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        OutlierDetector detector = new OutlierDetector(3, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, detector, stateCache);
+        client.start();
+        ChildData good = new ChildData("/services/myservice/nodes/good:1", null, null);
+        ChildData bad = new ChildData("/services/myservice/nodes/bad:1", null, null);
+        stateCache.add(good, bad);
+
+        Node<MyObject> badNode = null;
+        for (Node<MyObject> node : client.getAllNodes()) {
+            if (node.host.equals("bad")) {
+                badNode = node;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            client.reportFailure(badNode);
+        }
+        awaitRebuild();
+        // ejected nodes are still members but are no longer selected
+        assertEquals(2, client.numServiceHosts());
+        for (int i = 0; i < 100; i++) {
+            try (NodeLease<MyObject> lease = client.acquire().get()) {
+                assertEquals("good", lease.getNode().host);
+            }
+        }
+
+        // the remaining node failing would leave too few nodes, so it is not ejected
+        for (int i = 0; i < 3; i++) {
+            client.acquire().get().fail();
+        }
+        awaitRebuild();
+        assertEquals("good", client.getServiceNode().get().host);
+    }
+
+    @Test
+    public void testReportsFailuresOfNodesFromEarlierSnapshots() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        OutlierDetector detector = new OutlierDetector(3, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, detector, stateCache);
+        client.start();
+        stateCache.add(new ChildData("/services/myservice/nodes/good:1", stat(1), "good".getBytes()),
+                new ChildData("/services/myservice/nodes/bad:1", stat(1), "bad".getBytes()));
+
+        Node<MyObject> badNode = client.getAllNodes().get(1);
+        stateCache.update(new ChildData("/services/myservice/nodes/bad:1", stat(2), "updated".getBytes()));
+        assertNotSame(badNode, client.getAllNodes().get(1));
+        for (int i = 0; i < 3; i++) {
+            client.reportFailure(badNode);
+        }
+        awaitRebuild();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("good", client.getServiceNode().get().host);
+        }
+    }
+
+    @Test
+    public void testPanicsWhenTooManyNodesAreEjected() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 1, TimeUnit.MINUTES, 100, 0.5);
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, detector, stateCache);
+        client.start();
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null),
+                new ChildData("/services/myservice/nodes/c:1", null, null));
+        for (Node<MyObject> node : client.getAllNodes()) {
+            client.reportFailure(node);
+        }
+        awaitRebuild();
+        HashSet<String> hosts = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            hosts.add(client.getServiceNode().get().host);
+        }
+        assertEquals(3, hosts.size());
+    }
+
+    @Test
+    public void testStartsAgainAfterCacheFailedToStart() throws Exception {
+        final AtomicInteger starts = new AtomicInteger();
+        FakeStateCache stateCache = new FakeStateCache() {
+            @Override
+            public void start() throws Exception {
+                if (starts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Zookeeper unreachable");
+                }
+            }
+        };
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, detector, stateCache);
+        try {
+            client.start();
+            fail();
+        } catch (IllegalStateException e) {
+            assertFalse(client.isStarted());
+        }
+        // the outlier detector did not start either, so it can start with the client now
+        client.start();
+        assertTrue(client.isStarted());
+    }
+
+    @Test
+    public void testRoutesToAllNodesWhenEveryNodeIsEjected() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 1, TimeUnit.MINUTES, 100, 0);
+        client = new DiscoClient<>(null, "myservice", new RoundRobinSelectorStrategy(), decoder, null, detector, stateCache);
+        client.start();
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null));
+        for (Node<MyObject> node : client.getAllNodes()) {
+            client.reportFailure(node);
+        }
+        awaitRebuild();
+        assertTrue(client.getServiceNode().isPresent());
+        assertTrue(client.acquire().isPresent());
+    }
+
+    @Test
+    public void testGetServiceNodesReturnsDistinctNodes() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", new RandomSelectorStrategy(), decoder, null, stateCache);
+        client.start();
+        assertTrue(client.getServiceNodes(3).isEmpty());
+
+        for (int i = 0; i < 5; i++) {
+            stateCache.add(new ChildData("/services/myservice/nodes/host" + i + ":1", null, null));
+        }
+        assertTrue(client.getServiceNodes(0).isEmpty());
+        for (int i = 0; i < 100; i++) {
+            List<Node<MyObject>> nodes = client.getServiceNodes(3);
+            assertEquals(3, nodes.size());
+            assertEquals(3, new HashSet<>(nodes).size());
+        }
+        // asking for more nodes than there are returns all of them
+        assertEquals(new HashSet<>(client.getAllNodes()), new HashSet<>(client.getServiceNodes(10)));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGetServiceNodesSpreadsAcrossZones() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        Decoder<Zoned> zoneDecoder = mock(Decoder.class);
+        when(zoneDecoder.decode(any(byte[].class))).thenAnswer(new Answer<Zoned>() {
+            @Override
+            public Zoned answer(InvocationOnMock invocation) throws Throwable {
+                final String zone = new String((byte[]) invocation.getArguments()[0]);
+                return () -> zone;
+            }
+        });
+        DiscoClient<Zoned> zonedClient = new DiscoClient<>(null, "myservice", new RandomSelectorStrategy(), zoneDecoder, null, stateCache);
+        zonedClient.start();
+        try {
+            stateCache.add(new ChildData("/services/myservice/nodes/a1:1", null, "a".getBytes()),
+                    new ChildData("/services/myservice/nodes/a2:1", null, "a".getBytes()),
+                    new ChildData("/services/myservice/nodes/a3:1", null, "a".getBytes()),
+                    new ChildData("/services/myservice/nodes/a4:1", null, "a".getBytes()),
+                    new ChildData("/services/myservice/nodes/b1:1", null, "b".getBytes()),
+                    new ChildData("/services/myservice/nodes/c1:1", null, "c".getBytes()));
+            for (int i = 0; i < 100; i++) {
+                HashSet<String> zones = new HashSet<>();
+                for (Node<Zoned> node : zonedClient.getServiceNodes(3, true)) {
+                    zones.add(node.payload.getZone());
+                }
+                assertEquals(3, zones.size());
+                // once every zone has a node the remaining picks come from the largest zone
+                assertEquals(5, zonedClient.getServiceNodes(5, true).size());
+            }
+        } finally {
+            zonedClient.stop();
+        }
+    }
+
+    @Test
+    public void testAwaitServiceNode() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        CompletableFuture<Node<MyObject>> node = client.awaitServiceNode(Duration.ofMinutes(1));
+        CompletableFuture<Void> twoNodes = client.awaitMinimumNodes(2);
+        assertFalse(node.isDone());
+
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null));
+        assertEquals("a", node.get(1, TimeUnit.SECONDS).host);
+        assertFalse(twoNodes.isDone());
+        stateCache.add(new ChildData("/services/myservice/nodes/b:1", null, null));
+        twoNodes.get(1, TimeUnit.SECONDS);
+
+        // already available
+        assertTrue(client.awaitServiceNode(Duration.ofMinutes(1)).isDone());
+        assertTrue(client.awaitMinimumNodes(2).isDone());
+    }
+
+    @Test
+    public void testAwaitServiceNodeTimesOut() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        try {
+            client.awaitServiceNode(Duration.ofMillis(10)).get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        CompletableFuture<Void> nodes = client.awaitMinimumNodes(1);
+        client.stop();
+        try {
+            nodes.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        client = null;
+    }
+
+    @Test
+    public void testBuildClientAsync() throws Exception {
+        framework = CuratorFrameworkFactory.builder()
+                .connectionTimeoutMs(1000)
+                .connectString("localhost:2181")
+                .retryPolicy(new ExponentialBackoffRetry(1000, 5))
+                .build();
+        framework.start();
+        final DiscoClientFactory<MyObject> factory = new DiscoClientFactory<>(framework, strategy, decoder);
+        client = factory.buildClientAsync("asyncservice").get(5, TimeUnit.SECONDS);
+        assertTrue(client.isStarted());
+        CompletableFuture<Node<MyObject>> node = client.awaitServiceNode(Duration.ofSeconds(5));
+
+        framework.create().withMode(CreateMode.EPHEMERAL).forPath("/services/asyncservice/nodes/hello:1231", "payload".getBytes());
+        assertEquals("hello", node.get(5, TimeUnit.SECONDS).host);
+    }
+
+    @Test
+    public void testTopologyListener() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, stateCache);
+        client.start();
+        ChildData a = new ChildData("/services/myservice/nodes/a:1", null, "a".getBytes());
+        ChildData b = new ChildData("/services/myservice/nodes/b:1", null, "b".getBytes());
+        stateCache.add(a);
+
+        final List<TopologyChange<MyObject>> changes = new ArrayList<>();
+        client.addListener(changes::add);
+        // the current nodes are delivered right away
+        assertEquals(1, changes.size());
+        assertEquals(singleton(new Node<>("a", 1, new MyObject("a".getBytes()))), changes.get(0).getAdded());
+
+        stateCache.add(b);
+        assertEquals(2, changes.size());
+        assertEquals(singleton(new Node<>("b", 1, new MyObject("b".getBytes()))), changes.get(1).getAdded());
+        assertTrue(changes.get(1).getRemoved().isEmpty());
+        assertTrue(changes.get(1).getVersion() > changes.get(0).getVersion());
+        assertEquals(client.getTopologyVersion(), changes.get(1).getVersion());
+
+        stateCache.update(new ChildData("/services/myservice/nodes/a:1", null, "a2".getBytes()));
+        assertEquals(3, changes.size());
+        assertEquals(singleton(new Node<>("a", 1, new MyObject("a2".getBytes()))), changes.get(2).getUpdated());
+        assertTrue(changes.get(2).getAdded().isEmpty());
+
+        stateCache.remove(b);
+        assertEquals(4, changes.size());
+        assertEquals(singleton(new Node<>("b", 1, new MyObject("b".getBytes()))), changes.get(3).getRemoved());
+
+        // rebuilds that do not change the membership are not delivered
+        client.rebuildSnapshot();
+        assertEquals(4, changes.size());
+    }
+
+    @Test
+    public void testFactorySharesClientsByServiceName() throws Exception {
+        framework = CuratorFrameworkFactory.builder()
+                .connectionTimeoutMs(1000)
+                .connectString("localhost:2181")
+                .retryPolicy(new ExponentialBackoffRetry(1000, 5))
+                .build();
+        framework.start();
+        final DiscoClientFactory<MyObject> factory = new DiscoClientFactory<>(framework, strategy, decoder);
+        DiscoClient<MyObject> first = factory.buildClient("sharedservice");
+        DiscoClient<MyObject> second = factory.buildClientAsync("sharedservice").get(5, TimeUnit.SECONDS);
+        assertSame(first, second);
+        DiscoClient<MyObject> other = factory.buildClient("otherservice");
+        assertNotSame(first, other);
+
+        // the client keeps running until everyone who built it stopped it
+        first.stop();
+        assertTrue(second.isStarted());
+        framework.create().withMode(CreateMode.EPHEMERAL).forPath("/services/sharedservice/nodes/hello:1231", "payload".getBytes());
+        assertEquals("hello", second.awaitServiceNode(Duration.ofSeconds(5)).get(5, TimeUnit.SECONDS).host);
+        second.stop();
+        assertFalse(second.isStarted());
+        // stopping it again does nothing
+        second.stop();
+
+        // a stopped client is not handed out again
+        client = factory.buildClient("sharedservice");
+        assertNotSame(first, client);
+        assertTrue(client.isStarted());
+        other.stop();
+    }
+
+    @Test
+    public void testRecordsMetrics() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        InMemoryDiscoMetrics metrics = new InMemoryDiscoMetrics();
+        client = new DiscoClient<>(null, "myservice", strategy, decoder, null, null, metrics, stateCache);
+        client.start();
+        doThrow(new RuntimeException("bad payload")).when(decoder).decode(eq("bad".getBytes()));
+
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, "a".getBytes()),
+                new ChildData("/services/myservice/nodes/b:1", null, "bad".getBytes()));
+        for (int i = 0; i < 10; i++) {
+            client.getServiceNode();
+        }
+        client.acquire().get().close();
+
+        InMemoryDiscoMetrics.ServiceMetrics service = metrics.forService("myservice");
+        assertEquals(11, service.getSelectionCount());
+        assertEquals(11, service.getSelections().get(new HostAndPort("a", 1))
+                + service.getSelections().get(new HostAndPort("b", 1)));
+        // once on start and once for the change
+        assertEquals(2, service.getSnapshotRebuilds());
+        assertEquals(1, service.getDecodes());
+        assertEquals(1, service.getDecodeFailures());
+        assertEquals(2, service.getL1Size());
+        assertEquals(0, service.getL2Size());
+
+        // updated payloads are still counted under their host and port
+        stateCache.update(new ChildData("/services/myservice/nodes/a:1", null, "updated".getBytes()));
+        client.getServiceNode();
+        assertEquals(12, service.getSelectionCount());
+        assertEquals(2, service.getSelections().size());
+    }
+
     @After
     public void tearDown() {
         if (client != null) {
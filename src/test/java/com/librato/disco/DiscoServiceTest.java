@@ -1,16 +1,28 @@
 package com.librato.disco;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.api.ACLBackgroundPathAndBytesable;
 import org.apache.curator.framework.api.CreateBuilder;
 import org.apache.curator.framework.api.DeleteBuilder;
 import org.apache.curator.framework.api.ExistsBuilder;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.data.Stat;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class DiscoServiceTest {
@@ -70,6 +82,87 @@ public class DiscoServiceTest {
         verify(deleteBuilder).forPath(path);
     }
 
+    @Test
+    public void testRegistersSeveralNodesInOneTransaction() throws Exception {
+        CuratorFramework framework = CuratorFrameworkFactory.builder()
+                .connectionTimeoutMs(1000)
+                .connectString("localhost:2181")
+                .retryPolicy(new ExponentialBackoffRetry(1000, 5))
+                .build();
+        framework.start();
+        try {
+            // left over by a previous session, which the transaction must replace
+            framework.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+                    .forPath("/services/multiservice1/nodes/foo:4321", "stale".getBytes());
+            DiscoService service = new DiscoService(framework);
+            service.start(Arrays.asList(
+                    new ServiceRegistration("multiservice1", "foo", 4321, "one".getBytes()),
+                    new ServiceRegistration("multiservice1", "foo", 4322, "two".getBytes()),
+                    new ServiceRegistration("multiservice2", "foo", 4321, null)), false);
+
+            assertArrayEquals("one".getBytes(), framework.getData().forPath("/services/multiservice1/nodes/foo:4321"));
+            assertArrayEquals("two".getBytes(), framework.getData().forPath("/services/multiservice1/nodes/foo:4322"));
+            assertNotNull(framework.checkExists().forPath("/services/multiservice2/nodes/foo:4321"));
+
+            // re-registering replaces the nodes of this session
+            Stat before = framework.checkExists().forPath("/services/multiservice1/nodes/foo:4322");
+            service.listener.stateChanged(framework, ConnectionState.RECONNECTED);
+            Stat after = framework.checkExists().forPath("/services/multiservice1/nodes/foo:4322");
+            assertTrue(after.getCzxid() > before.getCzxid());
+
+            framework.delete().forPath("/services/multiservice2/nodes/foo:4321");
+            service.stop();
+            assertNull(framework.checkExists().forPath("/services/multiservice1/nodes/foo:4321"));
+            assertNull(framework.checkExists().forPath("/services/multiservice1/nodes/foo:4322"));
+        } finally {
+            framework.close();
+        }
+    }
+
+    @Test
+    public void testUpdatesPayloadCoalescedAndRateLimited() throws Exception {
+        CuratorFramework framework = CuratorFrameworkFactory.builder()
+                .connectionTimeoutMs(1000)
+                .connectString("localhost:2181")
+                .retryPolicy(new ExponentialBackoffRetry(1000, 5))
+                .build();
+        framework.start();
+        DiscoService service = new DiscoService(framework, "loadservice");
+        String path = "/services/loadservice/nodes/foo:4321";
+        try {
+            service.start("foo", 4321, false, "initial".getBytes());
+            service.updatePayload("first".getBytes());
+            service.updatePayload("second".getBytes());
+            service.updatePayload("third".getBytes());
+            awaitData(framework, path, "third");
+            // the updates were coalesced into a single write
+            assertEquals(1, framework.checkExists().forPath(path).getVersion());
+
+            final AtomicInteger concurrency = new AtomicInteger(7);
+            LoadReporter reporter = new LoadReporter(service, () -> 3, concurrency::get,
+                    load -> (load.getQueueDepth() + "/" + load.getConcurrency()).getBytes(), 10, TimeUnit.MILLISECONDS);
+            reporter.start();
+            awaitData(framework, path, "3/7");
+            concurrency.set(8);
+            long start = System.currentTimeMillis();
+            awaitData(framework, path, "3/8");
+            // published no sooner than the rate limit allows
+            assertTrue(System.currentTimeMillis() - start >= DiscoService.MIN_PAYLOAD_UPDATE_MILLIS - 100);
+            reporter.stop();
+        } finally {
+            service.stop();
+            framework.close();
+        }
+    }
+
+    private static void awaitData(CuratorFramework framework, String path, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!expected.equals(new String(framework.getData().forPath(path))) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, new String(framework.getData().forPath(path)));
+    }
+
     @SuppressWarnings("unchecked")
     private CuratorFramework mockFramework() {
         CuratorFramework framework = mock(CuratorFramework.class);
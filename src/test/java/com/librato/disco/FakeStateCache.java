@@ -19,13 +19,25 @@ class FakeStateCache extends AbstractStateCache {
                 this.currentData.add(childData);
             }
         }
+        notifyListeners();
+    }
+
+    public void update(ChildData data) {
+        for (int i = 0; i < currentData.size(); i++) {
+            if (currentData.get(i).getPath().equals(data.getPath())) {
+                currentData.set(i, data);
+            }
+        }
+        notifyListeners();
     }
 
     public void remove(ChildData data) {
         this.currentData.remove(data);
+        notifyListeners();
     }
 
     public void clear() {
         this.currentData.clear();
+        notifyListeners();
     }
 }
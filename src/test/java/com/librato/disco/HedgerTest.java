@@ -0,0 +1,144 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgerTest {
+    private FakeStateCache stateCache;
+    private LeastOutstandingSelectorStrategy selector;
+    private DiscoClient<Object> client;
+
+    @Before
+    public void setup() throws Exception {
+        stateCache = new FakeStateCache();
+        selector = new LeastOutstandingSelectorStrategy();
+        client = new DiscoClient<>(null, "myservice", selector, null, null, stateCache);
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+    }
+
+    @Test
+    public void testHedgesSlowRequestsToAnotherNode() throws Exception {
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null));
+        Hedger<Object> hedger = new Hedger<>(client, 0.95, 100, 1, TimeUnit.MILLISECONDS);
+        warmUp(hedger);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), hedger.getDelayNanos());
+
+        final List<String> hosts = new ArrayList<>();
+        final List<CompletableFuture<String>> sent = new ArrayList<>();
+        CompletableFuture<String> result = hedger.execute(node -> {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            synchronized (sent) {
+                hosts.add(node.host);
+                sent.add(reply);
+                if (sent.size() == 2) {
+                    reply.complete(node.host);
+                }
+            }
+            return reply;
+        });
+        String winner = result.get(1, TimeUnit.SECONDS);
+        assertEquals(hosts.get(1), winner);
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(0).isCancelled());
+        // the hedge went to the other node
+        assertNotEquals(hosts.get(0), hosts.get(1));
+        assertEquals(0, selector.outstanding(stateCache.getCurrentData().get(0)));
+        assertEquals(0, selector.outstanding(stateCache.getCurrentData().get(1)));
+    }
+
+    @Test
+    public void testDoesNotHedgeWithoutBudget() throws Exception {
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null));
+        Hedger<Object> hedger = new Hedger<>(client, 0.95, 0, 1, TimeUnit.MILLISECONDS);
+        warmUp(hedger);
+
+        final List<Node<Object>> sent = new ArrayList<>();
+        CompletableFuture<Object> result = hedger.execute(node -> {
+            synchronized (sent) {
+                sent.add(node);
+            }
+            return new CompletableFuture<>();
+        });
+        Thread.sleep(50);
+        assertFalse(result.isDone());
+        assertEquals(1, sent.size());
+        result.cancel(true);
+    }
+
+    @Test
+    public void testDoesNotHedgeBeforeLatenciesAreKnown() throws Exception {
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null));
+        Hedger<Object> hedger = new Hedger<>(client, 0.95, 100, 1, TimeUnit.MILLISECONDS);
+        assertTrue(hedger.getDelayNanos() < 0);
+
+        final List<Node<Object>> sent = new ArrayList<>();
+        CompletableFuture<Object> result = hedger.execute(node -> {
+            synchronized (sent) {
+                sent.add(node);
+            }
+            return new CompletableFuture<>();
+        });
+        Thread.sleep(50);
+        assertEquals(1, sent.size());
+        result.cancel(true);
+    }
+
+    @Test
+    public void testFailsWithoutNodes() throws Exception {
+        Hedger<Object> hedger = new Hedger<>(client);
+        try {
+            hedger.execute(node -> CompletableFuture.completedFuture("reply")).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testFailureIsNotRetried() throws Exception {
+        stateCache.add(new ChildData("/services/myservice/nodes/a:1", null, null),
+                new ChildData("/services/myservice/nodes/b:1", null, null));
+        final List<Node<Object>> sent = new ArrayList<>();
+        CompletableFuture<Object> result = client.hedge(node -> {
+            sent.add(node);
+            CompletableFuture<Object> reply = new CompletableFuture<>();
+            reply.completeExceptionally(new RuntimeException("failed"));
+            return reply;
+        });
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals(1, sent.size());
+    }
+
+    private static void warmUp(Hedger<Object> hedger) throws Exception {
+        for (int i = 0; i < 64; i++) {
+            hedger.execute(node -> CompletableFuture.completedFuture(node.host)).get();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.librato.disco.FakeChildData.newData;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LeastLoadedSelectorStrategyTest {
+    private final List<ChildData> children = new ArrayList<>();
+    private final List<Node<LoadPayload>> nodes = new ArrayList<>();
+
+    @Test
+    public void testFavorsLightlyLoadedNodes() throws Exception {
+        add("idle", new ServerLoad(0.1, 0, 2));
+        add("busy", new ServerLoad(0.5, 10, 40));
+        add("saturated", new ServerLoad(1.0, 100, 64));
+        LeastLoadedSelectorStrategy strategy = new LeastLoadedSelectorStrategy();
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 30000);
+        // the least loaded node wins every sample it is part of, the most loaded none
+        assertEquals(20000, counts[0], 500);
+        assertEquals(10000, counts[1], 500);
+        assertEquals(0, counts[2]);
+    }
+
+    @Test
+    public void testScoresUnknownLoadAsAverage() throws Exception {
+        add("idle", new ServerLoad(0, 0, 0));
+        add("unknown", null);
+        add("saturated", new ServerLoad(0.99, 50, 50));
+        LeastLoadedSelectorStrategy strategy = new LeastLoadedSelectorStrategy();
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 30000);
+        assertTrue(counts[0] > counts[1]);
+        assertTrue(counts[1] > counts[2]);
+    }
+
+    @Test
+    public void testScore() throws Exception {
+        assertEquals(1.0, new ServerLoad(0, 0, 0).score(), 0.001);
+        assertEquals(14.0, new ServerLoad(0.5, 1, 5).score(), 0.001);
+        // a saturated cpu does not divide by zero
+        assertEquals(20.0, new ServerLoad(1, 0, 0).score(), 0.001);
+    }
+
+    private void add(String name, ServerLoad load) {
+        ChildData child = newData(name);
+        children.add(child);
+        nodes.add(new Node<>(name, 1, new LoadPayload(load)));
+    }
+
+    private int[] count(SelectorStrategy strategy, int picks) {
+        int[] counts = new int[children.size()];
+        for (int i = 0; i < picks; i++) {
+            counts[children.indexOf(strategy.choose(children))]++;
+        }
+        return counts;
+    }
+
+    private static class LoadPayload implements Loaded {
+        final ServerLoad load;
+
+        LoadPayload(ServerLoad load) {
+            this.load = load;
+        }
+
+        @Override
+        public ServerLoad getLoad() {
+            return load;
+        }
+    }
+}
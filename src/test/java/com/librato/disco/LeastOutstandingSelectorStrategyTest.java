@@ -0,0 +1,63 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.librato.disco.FakeChildData.newData;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LeastOutstandingSelectorStrategyTest {
+    @Test
+    public void testChoosesLeastOutstanding() throws Exception {
+        ChildData childA = newData("a");
+        ChildData childB = newData("b");
+        List<ChildData> children = asList(childA, childB);
+        LeastOutstandingSelectorStrategy strategy = new LeastOutstandingSelectorStrategy();
+        strategy.update(children);
+
+        strategy.requestStarted(childA);
+        for (int i = 0; i < 1000; i++) {
+            assertSame(childB, strategy.choose(children));
+        }
+
+        strategy.requestStarted(childB);
+        strategy.requestStarted(childB);
+        strategy.requestFinished(childA);
+        for (int i = 0; i < 1000; i++) {
+            assertSame(childA, strategy.choose(children));
+        }
+    }
+
+    @Test
+    public void testDropsCountersForRemovedNodes() throws Exception {
+        ChildData childA = newData("a");
+        ChildData childB = newData("b");
+        LeastOutstandingSelectorStrategy strategy = new LeastOutstandingSelectorStrategy();
+        strategy.update(asList(childA, childB));
+        strategy.requestStarted(childA);
+        strategy.requestStarted(childA);
+        assertEquals(2, strategy.outstanding(childA));
+
+        strategy.update(singletonList(childB));
+        assertEquals(0, strategy.outstanding(childA));
+
+        // a lease finishing after its node left must not go negative once it rejoins
+        strategy.update(asList(childA, childB));
+        strategy.requestFinished(childA);
+        assertEquals(0, strategy.outstanding(childA));
+    }
+
+    @Test
+    public void testChooseWithoutUpdate() throws Exception {
+        ChildData childA = newData("a");
+        LeastOutstandingSelectorStrategy strategy = new LeastOutstandingSelectorStrategy();
+        assertSame(childA, strategy.choose(singletonList(childA)));
+        ChildData childB = newData("b");
+        strategy.choose(asList(childA, childB));
+    }
+}
@@ -12,9 +12,15 @@ import static java.util.Collections.singletonList;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class Level2StateCacheTest {
@@ -52,6 +58,7 @@ public class Level2StateCacheTest {
 
         // verify that during promotion no changes to the l1 cache propagate
         strategy.setPromote(true);
+        l2Cache.refresh();
         l1Cache.clear();
         assertThat(l1Cache.getCurrentData(), equalTo(noData));
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c2)));
@@ -63,6 +70,7 @@ public class Level2StateCacheTest {
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c2)));
 
         strategy.setPromote(false);
+        l2Cache.refresh();
         assertThat(l1Cache.getCurrentData(), equalTo(asList(c2, c3, c4)));
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c2, c3, c4)));
 
@@ -88,30 +96,74 @@ public class Level2StateCacheTest {
         // remove c2 from the l1 cache, but at this point c2 should not yet be expired in the l2 cache
         l1Cache.remove(c2);
         strategy.setPromote(true);
+        l2Cache.refresh();
         // therefore it should be in the returned results
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c2, c3)));
 
         // demote the l2 cache, and now we should have c1 and c3 returned
         strategy.setPromote(false);
+        l2Cache.refresh();
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c3)));
 
         // if we promote again we should get all three returned
         strategy.setPromote(true);
+        l2Cache.refresh();
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c2, c3)));
 
         // if we expire c2 from the l2 cache it should still be returned as it
         // is in the promoted state
         when(expireStrategy.shouldExpire(eq(c2), anyLong())).thenReturn(true);
+        l2Cache.refresh();
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c2, c3)));
 
         // because it is expired, and also not in the l1 cache, when we demote
         // the l2 cache it should be pruned
         strategy.setPromote(false);
+        l2Cache.refresh();
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c3)));
         // and then once we promote again, because it has been expired, it won't
         // be in the frozen list
         strategy.setPromote(true);
+        l2Cache.refresh();
         assertThat(l2Cache.getCurrentData(), equalTo(asList(c1, c3)));
     }
 
+    @Test
+    public void readsDoNotConsultStrategy() throws Exception {
+        FakeStateCache l1Cache = new FakeStateCache();
+        FakeLevel2CacheStrategy strategy = spy(new FakeLevel2CacheStrategy(10, SECONDS));
+        Level2StateCache l2Cache = new Level2StateCache(serviceName, l1Cache, strategy);
+
+        ChildData c1 = newData("c1");
+        l1Cache.add(c1);
+        verify(strategy, times(1)).promote(eq(serviceName), eq(1), eq(1), eq(false));
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(l2Cache.getCurrentData(), equalTo(singletonList(c1)));
+        }
+        verify(strategy, times(1)).promote(anyString(), anyInt(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void reportsPromotions() throws Exception {
+        FakeStateCache l1Cache = new FakeStateCache();
+        FakeLevel2CacheStrategy strategy = new FakeLevel2CacheStrategy(10, SECONDS);
+        InMemoryDiscoMetrics metrics = new InMemoryDiscoMetrics();
+        Level2StateCache l2Cache = new Level2StateCache(serviceName, l1Cache, strategy, metrics);
+        l1Cache.add(newData("c1"), newData("c2"));
+
+        strategy.setPromote(true);
+        l2Cache.refresh();
+        l1Cache.clear();
+        InMemoryDiscoMetrics.ServiceMetrics service = metrics.forService(serviceName);
+        assertThat(service.getL2Promotions(), equalTo(1L));
+        assertThat(service.isL2Promoted(), equalTo(true));
+        assertThat(service.getL1Size(), equalTo(0));
+        assertThat(service.getL2Size(), equalTo(2));
+
+        strategy.setPromote(false);
+        l2Cache.refresh();
+        assertThat(service.getL2Demotions(), equalTo(1L));
+        assertThat(service.isL2Promoted(), equalTo(false));
+    }
 }
@@ -0,0 +1,155 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodeResourcesTest {
+    static final ChildData a = new ChildData("/services/myservice/nodes/a:1", null, null);
+    static final ChildData b = new ChildData("/services/myservice/nodes/b:1", null, null);
+
+    static class RecordingManager implements NodeResourceManager<String, String> {
+        final List<String> created = new CopyOnWriteArrayList<>();
+        final List<String> closed = new CopyOnWriteArrayList<>();
+        final CountDownLatch creating = new CountDownLatch(1);
+        volatile CountDownLatch release = new CountDownLatch(0);
+        // host -> number of times creating its resource fails
+        final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+        @Override
+        public String create(Node<String> node) throws Exception {
+            creating.countDown();
+            release.await();
+            Integer left = failures.get(node.host);
+            if (left != null && left > 0) {
+                failures.put(node.host, left - 1);
+                throw new Exception("cannot connect to " + node.host);
+            }
+            created.add(node.host);
+            return "pool-" + node.host;
+        }
+
+        @Override
+        public void close(Node<String> node, String resource) throws Exception {
+            closed.add(resource);
+        }
+    }
+
+    @Test
+    public void testCreatesAndClosesWithMembership() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        DiscoClient<String> client = new DiscoClient<>(null, "myservice", new RoundRobinSelectorStrategy(), null, null, stateCache);
+        client.start();
+        stateCache.add(a);
+
+        RecordingManager manager = new RecordingManager();
+        NodeResources<String, String> resources = client.manageResources(manager);
+        awaitResources(resources, client, 1);
+        assertEquals("pool-a", resources.getServiceNode().get().getResource());
+
+        stateCache.add(b);
+        awaitResources(resources, client, 2);
+        stateCache.remove(a);
+        assertEquals(1, manager.closed.size());
+        assertEquals("pool-a", manager.closed.get(0));
+        for (int i = 0; i < 10; i++) {
+            NodeResource<String, String> selected = resources.getServiceNode().get();
+            assertEquals("b", selected.getNode().host);
+            assertEquals("pool-b", selected.getResource());
+        }
+
+        resources.stop();
+        assertEquals(2, manager.closed.size());
+        client.stop();
+    }
+
+    @Test
+    public void testClosesResourceOfNodeThatLeftWhileCreating() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        DiscoClient<String> client = new DiscoClient<>(null, "myservice", new RoundRobinSelectorStrategy(), null, null, stateCache);
+        client.start();
+        RecordingManager manager = new RecordingManager();
+        manager.release = new CountDownLatch(1);
+        NodeResources<String, String> resources = client.manageResources(manager);
+
+        stateCache.add(a);
+        // the node is selected but its resource is not ready
+        assertTrue(manager.creating.await(5, TimeUnit.SECONDS));
+        assertFalse(resources.getServiceNode().isPresent());
+        stateCache.remove(a);
+        manager.release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.closed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("pool-a", manager.closed.get(0));
+        assertNull(resources.get(client.toNode(a)));
+        resources.stop();
+        client.stop();
+    }
+
+    @Test
+    public void testRetriesFailedCreation() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        DiscoClient<String> client = new DiscoClient<>(null, "myservice", new RoundRobinSelectorStrategy(), null, null, stateCache);
+        client.start();
+        RecordingManager manager = new RecordingManager();
+        manager.failures.put("a", 1);
+        NodeResources<String, String> resources = client.manageResources(manager);
+
+        stateCache.add(a);
+        awaitResources(resources, client, 1);
+        assertEquals("pool-a", resources.getServiceNode().get().getResource());
+        resources.stop();
+        client.stop();
+    }
+
+    @Test
+    public void testFallsBackToReadyNode() throws Exception {
+        FakeStateCache stateCache = new FakeStateCache();
+        // always chooses a, whose resource is never ready
+        DiscoClient<String> client = new DiscoClient<>(null, "myservice", children -> children.get(0), null, null, stateCache);
+        client.start();
+        RecordingManager manager = new RecordingManager();
+        manager.failures.put("a", Integer.MAX_VALUE);
+        NodeResources<String, String> resources = client.manageResources(manager);
+
+        stateCache.add(a, b);
+        awaitResources(resources, client, 1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("pool-b", resources.getServiceNode().get().getResource());
+        }
+        resources.stop();
+        client.stop();
+    }
+
+    private static void awaitResources(NodeResources<String, String> resources, DiscoClient<String> client, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (System.currentTimeMillis() < deadline) {
+            int ready = 0;
+            for (Node<String> node : client.getAllNodes()) {
+                if (resources.get(node) != null) {
+                    ready++;
+                }
+            }
+            if (ready == count) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        assertTrue("resources not created in time", false);
+    }
+}
@@ -9,5 +9,18 @@ public class NodeTest {
     public void testHostAndPort() throws Exception {
         Node<?> node = new Node<>("localhost", 8080, "{}");
         Assert.assertThat(node.getHostAndPort(), CoreMatchers.equalTo(new HostAndPort("localhost", 8080)));
+        Assert.assertSame(node.getHostAndPort(), node.getHostAndPort());
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        Node<?> literal = new Node<>("10.1.2.3", 8080, null);
+        Assert.assertFalse(literal.getAddress().isUnresolved());
+        Assert.assertThat(literal.getAddress().getAddress().getHostAddress(), CoreMatchers.equalTo("10.1.2.3"));
+
+        // hostnames are never looked up by the node itself
+        Node<?> hostname = new Node<>("localhost", 8080, null);
+        Assert.assertTrue(hostname.getAddress().isUnresolved());
+        Assert.assertThat(hostname.getAddress().getPort(), CoreMatchers.equalTo(8080));
     }
 }
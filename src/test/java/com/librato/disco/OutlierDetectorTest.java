@@ -0,0 +1,98 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.librato.disco.FakeChildData.newData;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutlierDetectorTest {
+    private final ChildData a = newData("a");
+    private final ChildData b = newData("b");
+    private final ChildData c = newData("c");
+    private final ChildData d = newData("d");
+    private final List<ChildData> children = asList(a, b, c, d);
+
+    @Test
+    public void testEjectsAfterConsecutiveFailures() throws Exception {
+        OutlierDetector detector = new OutlierDetector(3, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        AtomicInteger changes = new AtomicInteger();
+        detector.setListener(changes::incrementAndGet);
+        detector.update(children);
+
+        detector.failure(a);
+        detector.failure(a);
+        detector.success(a);
+        detector.failure(a);
+        detector.failure(a);
+        assertFalse(detector.isEjected(a));
+        detector.failure(a);
+        assertTrue(detector.isEjected(a));
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void testEjectsOnFailureRate() throws Exception {
+        OutlierDetector detector = new OutlierDetector(0, 0.5, 10, 1, TimeUnit.MINUTES, 50, 0.5);
+        detector.update(children);
+        for (int i = 0; i < 4; i++) {
+            detector.success(a);
+            detector.failure(a);
+        }
+        assertFalse(detector.isEjected(a));
+        detector.success(a);
+        detector.failure(a);
+        assertTrue(detector.isEjected(a));
+    }
+
+    @Test
+    public void testMaxEjectionPercent() throws Exception {
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        detector.update(children);
+        detector.failure(a);
+        detector.failure(b);
+        detector.failure(c);
+        assertTrue(detector.isEjected(a));
+        assertTrue(detector.isEjected(b));
+        assertFalse(detector.isEjected(c));
+        assertEquals(2, detector.ejectionCount());
+    }
+
+    @Test
+    public void testEjectionExpires() throws Exception {
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 50, TimeUnit.MILLISECONDS, 50, 0.5);
+        AtomicInteger changes = new AtomicInteger();
+        detector.setListener(changes::incrementAndGet);
+        detector.update(children);
+        detector.failure(a);
+        assertTrue(detector.isEjected(a));
+        Thread.sleep(200);
+        assertFalse(detector.isEjected(a));
+        assertEquals(2, changes.get());
+    }
+
+    @Test
+    public void testForgetsRemovedNodes() throws Exception {
+        OutlierDetector detector = new OutlierDetector(1, 0, 0, 1, TimeUnit.MINUTES, 50, 0.5);
+        detector.update(children);
+        detector.failure(a);
+        assertTrue(detector.isEjected(a));
+        detector.update(asList(b, c, d));
+        assertFalse(detector.isEjected(a));
+        assertEquals(0, detector.ejectionCount());
+    }
+
+    @Test
+    public void testPanic() throws Exception {
+        OutlierDetector detector = new OutlierDetector();
+        assertFalse(detector.isPanicking(2, 4));
+        assertTrue(detector.isPanicking(1, 4));
+    }
+}
@@ -0,0 +1,76 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.librato.disco.FakeChildData.newData;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeakEwmaSelectorStrategyTest {
+    @Test
+    public void testPrefersFasterNode() throws Exception {
+        ChildData fast = newData("fast");
+        ChildData slow = newData("slow");
+        List<ChildData> children = asList(fast, slow);
+        PeakEwmaSelectorStrategy strategy = new PeakEwmaSelectorStrategy();
+        strategy.update(children);
+
+        strategy.recordLatency(fast, TimeUnit.MILLISECONDS.toNanos(1));
+        strategy.recordLatency(slow, TimeUnit.MILLISECONDS.toNanos(2));
+        for (int i = 0; i < 1000; i++) {
+            assertSame(fast, strategy.choose(children));
+        }
+
+        // enough outstanding requests on the fast node tip the balance
+        strategy.requestStarted(fast);
+        strategy.requestStarted(fast);
+        for (int i = 0; i < 1000; i++) {
+            assertSame(slow, strategy.choose(children));
+        }
+    }
+
+    @Test
+    public void testPeakIsTakenImmediately() throws Exception {
+        ChildData child = newData("a");
+        PeakEwmaSelectorStrategy strategy = new PeakEwmaSelectorStrategy();
+        strategy.update(asList(child, newData("b")));
+
+        strategy.recordLatency(child, 1000);
+        strategy.recordLatency(child, 1000000);
+        assertTrue(strategy.load(child) > 900000);
+
+        // a fast response after the peak only moves the average part of the way back
+        strategy.recordLatency(child, 1000);
+        assertTrue(strategy.load(child) > 1000);
+    }
+
+    @Test
+    public void testFailuresArePenalized() throws Exception {
+        ChildData failing = newData("failing");
+        ChildData healthy = newData("healthy");
+        List<ChildData> children = asList(failing, healthy);
+        PeakEwmaSelectorStrategy strategy = new PeakEwmaSelectorStrategy(10, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+        strategy.update(children);
+
+        strategy.recordLatency(healthy, TimeUnit.MILLISECONDS.toNanos(100));
+        strategy.recordFailure(failing);
+        for (int i = 0; i < 1000; i++) {
+            assertSame(healthy, strategy.choose(children));
+        }
+    }
+
+    @Test
+    public void testUnknownNodesAreIgnored() throws Exception {
+        PeakEwmaSelectorStrategy strategy = new PeakEwmaSelectorStrategy();
+        ChildData child = newData("a");
+        strategy.recordLatency(child, 1000);
+        strategy.recordFailure(child);
+        assertEquals(0, strategy.load(child), 0);
+    }
+}
@@ -0,0 +1,74 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.CreateMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServicesTreeCacheTest {
+    private CuratorFramework framework;
+
+    @Before
+    public void setup() {
+        framework = CuratorFrameworkFactory.builder()
+                .connectionTimeoutMs(1000)
+                .connectString("localhost:2181")
+                .retryPolicy(new ExponentialBackoffRetry(1000, 5))
+                .build();
+        framework.start();
+    }
+
+    @After
+    public void tearDown() {
+        framework.close();
+    }
+
+    @Test
+    public void testServiceOf() throws Exception {
+        assertEquals("foo", ServicesTreeCache.serviceOf("/services/foo/nodes/host:1"));
+        assertNull(ServicesTreeCache.serviceOf("/services/foo/nodes"));
+        assertNull(ServicesTreeCache.serviceOf("/services/foo"));
+        assertNull(ServicesTreeCache.serviceOf("/services/foo/nodesx/host:1"));
+        assertNull(ServicesTreeCache.serviceOf("/other/foo/nodes/host:1"));
+    }
+
+    @Test
+    public void testClientsShareTheTreeCache() throws Exception {
+        framework.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+                .forPath("/services/treeservice1/nodes/existing:1", "payload".getBytes());
+        ServicesTreeCache servicesCache = new ServicesTreeCache(framework);
+        DiscoClientFactory<String> factory = new DiscoClientFactory<>(framework, RoundRobinSelectorStrategy::new,
+                null, null, DiscoMetrics.NOOP, servicesCache);
+        DiscoClient<String> first = factory.buildClient("treeservice1");
+        DiscoClient<String> second = factory.buildClient("treeservice2");
+        try {
+            // nodes that existed before starting are read right away
+            assertEquals(1, first.numServiceHosts());
+            assertEquals("existing", first.getServiceNode().get().host);
+            assertEquals(0, second.numServiceHosts());
+
+            framework.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+                    .forPath("/services/treeservice2/nodes/added:1", "payload".getBytes());
+            assertEquals("added", second.awaitServiceNode(Duration.ofSeconds(5)).get(5, TimeUnit.SECONDS).host);
+            assertEquals(1, first.numServiceHosts());
+
+            framework.delete().forPath("/services/treeservice1/nodes/existing:1");
+            for (int i = 0; i < 50 && first.numServiceHosts() > 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, first.numServiceHosts());
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+}
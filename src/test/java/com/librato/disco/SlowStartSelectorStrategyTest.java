@@ -0,0 +1,99 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlowStartSelectorStrategyTest {
+    // long enough that the scheduler does not refresh while a test runs
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(1);
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final List<ChildData> children = new ArrayList<>();
+    private final List<Node<Object>> nodes = new ArrayList<>();
+
+    @Test
+    public void testRampsUpLinearly() throws Exception {
+        SlowStartSelectorStrategy strategy = new SlowStartSelectorStrategy(WINDOW, SlowStartSelectorStrategy.Ramp.LINEAR, now::get);
+        add("warm", now.get() - 2 * WINDOW);
+        add("new", now.get());
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 100000);
+        assertEquals(0.01 / 1.01, share(counts, 1), 0.005);
+
+        // picks never recompute the weights, the scheduler does
+        now.addAndGet(WINDOW / 2);
+        counts = count(strategy, 100000);
+        assertEquals(0.01 / 1.01, share(counts, 1), 0.005);
+        strategy.refresh();
+        counts = count(strategy, 100000);
+        double halfway = 0.01 + 0.99 * 0.5;
+        assertEquals(halfway / (1 + halfway), share(counts, 1), 0.01);
+
+        now.addAndGet(WINDOW / 2);
+        strategy.refresh();
+        counts = count(strategy, 100000);
+        assertEquals(0.5, share(counts, 1), 0.01);
+    }
+
+    @Test
+    public void testRampsUpExponentially() throws Exception {
+        SlowStartSelectorStrategy strategy = new SlowStartSelectorStrategy(WINDOW, SlowStartSelectorStrategy.Ramp.EXPONENTIAL, now::get);
+        assertEquals(0.01, strategy.factor(0), 0.0001);
+        assertEquals(0.1, strategy.factor(WINDOW / 2), 0.0001);
+        assertEquals(1, strategy.factor(WINDOW), 0.0001);
+
+        SlowStartSelectorStrategy linear = new SlowStartSelectorStrategy(WINDOW, SlowStartSelectorStrategy.Ramp.LINEAR, now::get);
+        for (long age = 0; age < WINDOW; age += WINDOW / 10) {
+            assertTrue(strategy.factor(age) <= linear.factor(age));
+        }
+    }
+
+    @Test
+    public void testSharesEvenlyWhenAllNodesAreNew() throws Exception {
+        SlowStartSelectorStrategy strategy = new SlowStartSelectorStrategy(WINDOW, SlowStartSelectorStrategy.Ramp.LINEAR, now::get);
+        add("a", now.get());
+        add("b", now.get());
+        add("unknown", -1);
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 100000);
+        // the node without a creation time is warm
+        assertEquals(1 / 1.02, share(counts, 2), 0.01);
+        assertEquals(counts[0], counts[1], 1000);
+    }
+
+    private void add(String name, long ctime) {
+        Stat stat = null;
+        if (ctime >= 0) {
+            stat = new Stat();
+            stat.setCtime(ctime);
+        }
+        children.add(new ChildData("/services/myservice/nodes/" + name + ":1", stat, null));
+        nodes.add(new Node<>(name, 1, null));
+    }
+
+    private int[] count(SelectorStrategy strategy, int picks) {
+        int[] counts = new int[children.size()];
+        for (int i = 0; i < picks; i++) {
+            counts[children.indexOf(strategy.choose(children))]++;
+        }
+        return counts;
+    }
+
+    private static double share(int[] counts, int index) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return (double) counts[index] / total;
+    }
+}
@@ -0,0 +1,115 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.librato.disco.FakeChildData.newData;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotFileStateCacheTest {
+    String serviceName = "foo";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SnapshotFileStateCache cache = new SnapshotFileStateCache(serviceName, new FakeStateCache(), folder.getRoot());
+        Stat stat = new Stat();
+        stat.setCtime(12);
+        stat.setMzxid(34);
+        ChildData withStat = new ChildData("/services/foo/nodes/a", stat, "a".getBytes());
+        ChildData withoutData = new ChildData("/services/foo/nodes/b", null, null);
+        cache.write(asList(withStat, withoutData));
+
+        List<ChildData> read = cache.read();
+        assertThat(read.size(), equalTo(2));
+        assertThat(read.get(0).getPath(), equalTo(withStat.getPath()));
+        assertThat(read.get(0).getStat().getCtime(), equalTo(12L));
+        assertThat(read.get(0).getStat().getMzxid(), equalTo(34L));
+        assertArrayEquals("a".getBytes(), read.get(0).getData());
+        assertThat(read.get(1).getPath(), equalTo(withoutData.getPath()));
+        assertThat(read.get(1).getData(), nullValue());
+    }
+
+    @Test
+    public void testIgnoresCorruptSnapshot() throws Exception {
+        SnapshotFileStateCache cache = new SnapshotFileStateCache(serviceName, new FakeStateCache(), folder.getRoot());
+        assertThat(cache.read(), nullValue());
+        cache.write(asList(newData("a"), newData("b")));
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "foo.snapshot"), "rw")) {
+            file.seek(12);
+            file.write(file.read() ^ 0xff);
+        }
+        assertThat(cache.read(), nullValue());
+    }
+
+    @Test
+    public void testServesSnapshotUntilDelegateStarts() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        FakeStateCache delegate = new FakeStateCache() {
+            @Override
+            public void start() throws Exception {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Zookeeper unreachable");
+                }
+            }
+        };
+        ChildData a = newData("a");
+        ChildData b = newData("b");
+        delegate.add(b);
+        new SnapshotFileStateCache(serviceName, new FakeStateCache(), folder.getRoot()).write(asList(a));
+
+        SnapshotFileStateCache cache = new SnapshotFileStateCache(serviceName, delegate, folder.getRoot());
+        final AtomicInteger changes = new AtomicInteger();
+        cache.addListener(new IStateCacheListener() {
+            @Override
+            public void childrenChanged() {
+                changes.incrementAndGet();
+            }
+        });
+        cache.start();
+        assertFalse(cache.isLive());
+        assertThat(cache.getCurrentData().get(0).getPath(), equalTo(a.getPath()));
+
+        // the first start fails, and the retry a second later succeeds
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.isLive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(cache.isLive());
+        assertThat(cache.getCurrentData(), equalTo(asList(b)));
+        assertThat(changes.get(), equalTo(1));
+
+        cache.stop();
+        assertThat(cache.read().get(0).getPath(), equalTo(b.getPath()));
+    }
+
+    @Test
+    public void testStartsDelegateWithoutSnapshot() throws Exception {
+        FakeStateCache delegate = new FakeStateCache();
+        ChildData a = newData("a");
+        delegate.add(a);
+        SnapshotFileStateCache cache = new SnapshotFileStateCache(serviceName, delegate, folder.getRoot());
+        cache.start();
+        assertTrue(cache.isLive());
+        assertThat(cache.getCurrentData(), equalTo(asList(a)));
+
+        cache.stop();
+        assertThat(cache.read().get(0).getPath(), equalTo(a.getPath()));
+    }
+}
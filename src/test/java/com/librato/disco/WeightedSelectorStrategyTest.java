@@ -0,0 +1,111 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.librato.disco.FakeChildData.newData;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WeightedSelectorStrategyTest {
+    private final List<ChildData> children = new ArrayList<>();
+    private final List<Node<WeightPayload>> nodes = new ArrayList<>();
+
+    @Test
+    public void testWeightedRandom() throws Exception {
+        add("small", 1);
+        add("large", 4);
+        add("drained", 0);
+        WeightedRandomSelectorStrategy strategy = new WeightedRandomSelectorStrategy();
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 100000);
+        assertEquals(0, counts[2]);
+        assertEquals(4.0, (double) counts[1] / counts[0], 0.3);
+    }
+
+    @Test
+    public void testSmoothWeightedRoundRobin() throws Exception {
+        add("a", 5);
+        add("b", 1);
+        add("c", 1);
+        SmoothWeightedRoundRobinSelectorStrategy strategy = new SmoothWeightedRoundRobinSelectorStrategy();
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 7000);
+        assertEquals(5000, counts[0]);
+        assertEquals(1000, counts[1]);
+        assertEquals(1000, counts[2]);
+
+        // the light nodes are interleaved rather than picked back to back
+        ChildData previous = null;
+        for (int i = 0; i < 70; i++) {
+            ChildData chosen = strategy.choose(children);
+            if (chosen != children.get(0)) {
+                assertNotEquals(previous, chosen);
+            }
+            previous = chosen;
+        }
+    }
+
+    @Test
+    public void testSmoothWeightedRoundRobinScalesLargeWeights() throws Exception {
+        add("a", 1000000);
+        add("b", 3000000);
+        add("c", 1);
+        SmoothWeightedRoundRobinSelectorStrategy strategy = new SmoothWeightedRoundRobinSelectorStrategy();
+        strategy.update(children, nodes);
+
+        int[] counts = count(strategy, 100000);
+        assertEquals(3.0, (double) counts[1] / counts[0], 0.1);
+        assertTrue(counts[2] > 0);
+    }
+
+    @Test
+    public void testPayloadsWithoutWeight() throws Exception {
+        children.add(newData("a"));
+        children.add(newData("b"));
+        List<Node<String>> plain = new ArrayList<>();
+        plain.add(new Node<>("a", 1, "{}"));
+        plain.add(new Node<String>("b", 1, null));
+        WeightedRandomSelectorStrategy random = new WeightedRandomSelectorStrategy();
+        random.update(children, plain);
+        SmoothWeightedRoundRobinSelectorStrategy roundRobin = new SmoothWeightedRoundRobinSelectorStrategy();
+        roundRobin.update(children, plain);
+
+        int[] counts = count(roundRobin, 1000);
+        assertEquals(500, counts[0]);
+        counts = count(random, 10000);
+        assertTrue(counts[0] > 4000 && counts[1] > 4000);
+    }
+
+    private int[] count(SelectorStrategy strategy, int picks) {
+        int[] counts = new int[children.size()];
+        for (int i = 0; i < picks; i++) {
+            counts[children.indexOf(strategy.choose(children))]++;
+        }
+        return counts;
+    }
+
+    private void add(String name, int weight) {
+        children.add(newData(name));
+        nodes.add(new Node<>(name, 1, new WeightPayload(weight)));
+    }
+
+    private static class WeightPayload implements Weighted {
+        private final int weight;
+
+        WeightPayload(int weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.librato.disco;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.librato.disco.FakeChildData.newData;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoneAwareSelectorStrategyTest {
+    private final List<ChildData> children = new ArrayList<>();
+    private final List<Node<ZonePayload>> nodes = new ArrayList<>();
+
+    @Test
+    public void testPrefersLocalZone() throws Exception {
+        add("a1", "a");
+        add("a2", "a");
+        add("b1", "b");
+        add("b2", "b");
+        ZoneAwareSelectorStrategy strategy = new ZoneAwareSelectorStrategy("a");
+        strategy.update(children, nodes);
+        assertTrue(strategy.isLocalHealthy());
+
+        Set<String> chosen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            chosen.add(strategy.choose(children).getPath());
+        }
+        assertEquals(2, chosen.size());
+        assertTrue(chosen.contains(children.get(0).getPath()));
+        assertTrue(chosen.contains(children.get(1).getPath()));
+    }
+
+    @Test
+    public void testSpillsOverWhenLocalPoolIsUnhealthy() throws Exception {
+        add("a1", "a");
+        add("b1", "b");
+        add("b2", "b");
+        add("b3", "b");
+        add("b4", "b");
+        add("unknown", null);
+        ZoneAwareSelectorStrategy strategy = new ZoneAwareSelectorStrategy("a", 0.7, 0);
+        strategy.update(children, nodes);
+        assertFalse(strategy.isLocalHealthy());
+
+        Set<String> chosen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            chosen.add(strategy.choose(children).getPath());
+        }
+        assertEquals(children.size(), chosen.size());
+    }
+
+    @Test
+    public void testSpillsOverWhenLocalPoolIsOverloaded() throws Exception {
+        add("a1", "a");
+        add("b1", "b");
+        ZoneAwareSelectorStrategy strategy = new ZoneAwareSelectorStrategy("a", 0.5, 1);
+        strategy.update(children, nodes);
+
+        strategy.requestStarted(children.get(0));
+        assertEquals(children.get(0), strategy.choose(children));
+        // the requests above the allowed one spill over
+        for (int i = 0; i < 3; i++) {
+            strategy.requestStarted(children.get(0));
+        }
+        assertEquals(0.75, remoteShare(strategy), 0.03);
+        for (int i = 0; i < 3; i++) {
+            strategy.requestFinished(children.get(0));
+        }
+        assertEquals(children.get(0), strategy.choose(children));
+    }
+
+    @Test
+    public void testKeepsOutstandingRequestsWhenLocalNodeLeaves() throws Exception {
+        add("a1", "a");
+        add("a2", "a");
+        add("b1", "b");
+        add("b2", "b");
+        ZoneAwareSelectorStrategy strategy = new ZoneAwareSelectorStrategy("a", 0.5, 1);
+        strategy.update(children, nodes);
+        strategy.requestStarted(children.get(0));
+        strategy.requestStarted(children.get(0));
+        strategy.requestStarted(children.get(1));
+
+        // only the requests of the node that left are dropped from the local pool's load
+        children.remove(1);
+        nodes.remove(1);
+        strategy.update(children, nodes);
+        assertEquals(0.5, remoteShare(strategy), 0.03);
+    }
+
+    @Test
+    public void testNoLocalNodes() throws Exception {
+        add("b1", "b");
+        ZoneAwareSelectorStrategy strategy = new ZoneAwareSelectorStrategy("a");
+        strategy.update(children, nodes);
+        assertEquals(children.get(0), strategy.choose(children));
+    }
+
+    private double remoteShare(ZoneAwareSelectorStrategy strategy) {
+        int remote = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (strategy.choose(children).getPath().contains("data-b")) {
+                remote++;
+            }
+        }
+        return remote / 10000.0;
+    }
+
+    private void add(String name, String zone) {
+        children.add(newData(name));
+        nodes.add(new Node<>(name, 1, new ZonePayload(zone)));
+    }
+
+    private static class ZonePayload implements Zoned {
+        private final String zone;
+
+        ZonePayload(String zone) {
+            this.zone = zone;
+        }
+
+        @Override
+        public String getZone() {
+            return zone;
+        }
+    }
+}